@@ -0,0 +1,51 @@
+package dev.emortal.velocity.rabbitmq;
+
+import dev.emortal.velocity.rabbitmq.types.ConnectEventDataPackage;
+import dev.emortal.velocity.rabbitmq.types.DisconnectEventDataPackage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the JSON and protobuf encodings of connection events. Run with {@code ./gradlew jmh}, and add
+ * {@code -prof gc} through the plugin's profilers setting to compare allocations as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionEventEncodingBenchmark {
+    private final ConnectEventDataPackage connect = new ConnectEventDataPackage(UUID.randomUUID(), "Notch");
+    private final DisconnectEventDataPackage disconnect = new DisconnectEventDataPackage(UUID.randomUUID());
+
+    @Benchmark
+    public byte[] jsonConnect() {
+        return ConnectionEventEncoding.JSON.encode(this.connect);
+    }
+
+    @Benchmark
+    public byte[] protobufConnect() {
+        return ConnectionEventEncoding.PROTOBUF.encode(this.connect);
+    }
+
+    @Benchmark
+    public byte[] jsonDisconnect() {
+        return ConnectionEventEncoding.JSON.encode(this.disconnect);
+    }
+
+    @Benchmark
+    public byte[] protobufDisconnect() {
+        return ConnectionEventEncoding.PROTOBUF.encode(this.disconnect);
+    }
+}
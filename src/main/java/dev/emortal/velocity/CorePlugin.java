@@ -1,20 +1,30 @@
 package dev.emortal.velocity;
 
+import dev.emortal.velocity.agones.AgonesCapacityController;
+import dev.emortal.velocity.agones.AgonesPlayerSync;
 import dev.emortal.velocity.cache.SessionCache;
 import dev.emortal.velocity.friends.FriendCache;
 import dev.emortal.velocity.friends.commands.FriendCommand;
 import dev.emortal.velocity.friends.listeners.FriendAddListener;
 import dev.emortal.velocity.friends.listeners.FriendRemovalListener;
 import dev.emortal.velocity.friends.listeners.FriendRequestListener;
+import dev.emortal.velocity.general.ProxyDrainer;
 import dev.emortal.velocity.general.ServerManager;
+import dev.emortal.velocity.general.ServerPingCache;
+import dev.emortal.velocity.general.ServerRegistry;
 import dev.emortal.velocity.general.UsernameSuggestions;
+import dev.emortal.velocity.general.commands.DrainCommand;
 import dev.emortal.velocity.general.commands.PlaytimeCommand;
 import dev.emortal.velocity.grpc.service.GrpcServerContainer;
 import dev.emortal.velocity.grpc.stub.GrpcStubManager;
 import dev.emortal.velocity.listener.AgonesListener;
 import dev.emortal.velocity.listener.LobbySelectorListener;
 import dev.emortal.velocity.listener.McPlayerListener;
+import dev.emortal.velocity.listener.ServerFailoverListener;
+import dev.emortal.velocity.login.LoginPipeline;
+import dev.emortal.velocity.matchmaking.PendingAssignments;
 import dev.emortal.velocity.permissions.PermissionCache;
+import dev.emortal.velocity.permissions.PermissionChangeFeed;
 import dev.emortal.velocity.permissions.commands.PermissionCommand;
 import dev.emortal.velocity.permissions.listener.PermissionCheckListener;
 import dev.emortal.velocity.privatemessages.LastMessageCache;
@@ -64,6 +74,7 @@ public class CorePlugin {
     private final ProxyServer proxy;
 
     private final GrpcStubManager stubManager = new GrpcStubManager();
+    private final PendingAssignments pendingAssignments = new PendingAssignments();
     private final GrpcServerContainer grpcServerContainer;
 
     private final UsernameSuggestions usernameSuggestions = new UsernameSuggestions();
@@ -74,11 +85,12 @@ public class CorePlugin {
     private final SessionCache sessionCache = new SessionCache();
     private final LastMessageCache lastMessageCache = new LastMessageCache();
     private PermissionCache permissionCache;
+    private LoginPipeline loginPipeline;
 
     @Inject
     public CorePlugin(ProxyServer server) {
         this.proxy = server;
-        this.grpcServerContainer = new GrpcServerContainer(this.proxy);
+        this.grpcServerContainer = new GrpcServerContainer(this.proxy, this.pendingAssignments);
 
         PlayerResolver.setPlatformUsernameResolver(username -> this.proxy.getPlayer(username).map(player -> new PlayerResolver.CachedMcPlayer(player.getUniqueId(), player.getUsername())).orElse(null));
     }
@@ -86,18 +98,36 @@ public class CorePlugin {
     @Subscribe
     public void onProxyInitialize(ProxyInitializeEvent event) {
 
+        AgonesCapacityController capacityController = null;
         if (this.stubManager.getAgonesService() != null) {
+            AgonesPlayerSync playerSync = new AgonesPlayerSync(this, this.proxy, this.stubManager.getAlphaAgonesService());
+            capacityController = new AgonesCapacityController(this, this.proxy, this.stubManager.getAgonesService(), this.stubManager.getAlphaAgonesService());
             this.proxy.getEventManager().register(this, new AgonesListener(this.stubManager.getAgonesService(),
-                    this.stubManager.getStandardAgonesService(), this.stubManager.getAlphaAgonesService())
+                    this.stubManager.getStandardAgonesService(), this.stubManager.getAlphaAgonesService(), playerSync)
             );
         } else {
             LOGGER.warn("Agones SDK is not enabled. This is only intended for development purposes.");
         }
+        ProxyDrainer drainer = new ProxyDrainer(this, this.proxy, this.stubManager.getAgonesService(),
+                this.stubManager.getStandardAgonesService(), this.stubManager.getAlphaAgonesService(), capacityController);
 
-        ServerManager serverManager = new ServerManager(this, this.proxy);
+        ServerPingCache pingCache = new ServerPingCache(this, this.proxy);
+        ServerRegistry serverRegistry = new ServerRegistry(this, this.proxy, pingCache);
+        ServerManager serverManager = new ServerManager(this, this.proxy, serverRegistry, pingCache);
         // OTP status affects a lot of functionality, so we need it to be loaded first
 //        OtpEventListener otpEventListener = new OtpEventListener(serverManager);
         this.permissionCache = new PermissionCache(this.stubManager);
+        // Connecting happens in the background, so the feed starts once RabbitMQ is first reachable
+        this.rabbitMqEventListener.getConnection()
+                .thenAccept(connection -> this.permissionCache.setChangeFeed(new PermissionChangeFeed(this, this.proxy, connection, this.permissionCache)))
+                .exceptionally(throwable -> {
+                    LOGGER.error("Failed to start the permission change feed", throwable);
+                    return null;
+                });
+
+        // login - starts the fetches the other login listeners depend on, so it needs the caches they read from
+        this.loginPipeline = new LoginPipeline(this, this.proxy, this.permissionCache, this.friendCache);
+        this.proxy.getEventManager().register(this, this.loginPipeline);
 
         // rabbitmq
         this.proxy.getEventManager().register(this, this.rabbitMqEventListener);
@@ -117,8 +147,9 @@ public class CorePlugin {
         this.proxy.getEventManager().register(this, new PermissionCheckListener(this.permissionCache));
 
         // generic
-        this.proxy.getEventManager().register(this, new LobbySelectorListener(this.stubManager, this.proxy));
+        this.proxy.getEventManager().register(this, new LobbySelectorListener(this, this.proxy, serverRegistry, this.loginPipeline, this.pendingAssignments));
         this.proxy.getEventManager().register(this, new McPlayerListener(this.sessionCache));
+        this.proxy.getEventManager().register(this, new ServerFailoverListener(serverManager, serverRegistry, pingCache));
 
         // server list
         this.proxy.getEventManager().register(this, new ServerPingListener());
@@ -134,8 +165,7 @@ public class CorePlugin {
 
         // generic
         new PlaytimeCommand(this.proxy, this.sessionCache, this.usernameSuggestions);
-
-        new ServerCleanupTask(this, this.proxy);
+        new DrainCommand(this.proxy, drainer);
 
         if (DEBUG_PACKETS) {
             this.proxy.getScheduler().buildTask(this, () -> {
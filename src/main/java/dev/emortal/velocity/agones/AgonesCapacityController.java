@@ -0,0 +1,237 @@
+package dev.emortal.velocity.agones;
+
+import dev.emortal.velocity.CorePlugin;
+import dev.emortal.velocity.utils.ReflectionUtils;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.sun.management.OperatingSystemMXBean;
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.ProxyServer;
+import dev.agones.sdk.AgonesSDKProto;
+import dev.agones.sdk.SDKGrpc;
+import dev.agones.sdk.alpha.AlphaAgonesSDKProto;
+import dev.emortal.api.utils.callback.FunctionalFutureCallback;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adjusts the player capacity this proxy reports to Agones from how loaded it actually is, so the allocator can pack
+ * players more densely onto proxies with headroom and send fewer to busy ones.
+ * <p>
+ * Heap usage after the last GC, time spent in GC, process CPU and Netty event loop lag are each compared to a target.
+ * The most pressured signal decides how many players the proxy could hold at its targets, which is clamped to the
+ * configured bounds and never below the players already connected. With too few players to extrapolate from, the
+ * capacity is instead stepped towards the bounds. Optionally, the remaining headroom is also published as a label.
+ */
+public class AgonesCapacityController {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AgonesCapacityController.class);
+
+    public static final int INITIAL_CAPACITY = 250;
+
+    private static final int MIN_CAPACITY = Integer.parseInt(System.getenv().getOrDefault("AGONES_MIN_CAPACITY", "100"));
+    private static final int MAX_CAPACITY = Integer.parseInt(System.getenv().getOrDefault("AGONES_MAX_CAPACITY", "400"));
+    private static final boolean PUBLISH_LABELS = Boolean.parseBoolean(System.getenv("AGONES_CAPACITY_LABELS"));
+
+    private static final Duration SAMPLE_INTERVAL = Duration.ofSeconds(15);
+    // Below this many players, extrapolating from the load is too noisy
+    private static final int MIN_PLAYERS_TO_EXTRAPOLATE = 20;
+    // Changes smaller than this aren't worth an update
+    private static final int MIN_CAPACITY_CHANGE = 10;
+    // How far the capacity moves per sample when there are too few players to extrapolate from
+    private static final int CAPACITY_STEP = 25;
+    // Below this pressure, the capacity is stepped up. Between this and 1, it is held.
+    private static final double STEP_UP_PRESSURE = 0.8;
+
+    private static final double TARGET_HEAP_USAGE = 0.75;
+    private static final double TARGET_GC_TIME = 0.05;
+    private static final double TARGET_CPU_USAGE = 0.7;
+    private static final double TARGET_LOOP_LAG_MILLIS = 20;
+
+    private final ProxyServer proxy;
+    private final SDKGrpc.SDKFutureStub agonesService;
+    private final dev.agones.sdk.alpha.SDKGrpc.SDKFutureStub alphaAgonesService;
+
+    private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+    private final List<MemoryPoolMXBean> heapPools = ManagementFactory.getMemoryPoolMXBeans().stream()
+            .filter(pool -> pool.getType() == MemoryType.HEAP)
+            .toList();
+    private final @Nullable OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean() instanceof OperatingSystemMXBean bean ? bean : null;
+
+    private long lastGcTimeMillis = this.totalGcTimeMillis();
+    private long lastSampleNanos = System.nanoTime();
+    private final AtomicLong loopLagNanos = new AtomicLong();
+    private @Nullable EventLoopGroup eventLoopGroup;
+
+    private volatile int capacity = INITIAL_CAPACITY;
+    private volatile boolean paused;
+    private int publishedHeadroom = -1;
+
+    public AgonesCapacityController(CorePlugin plugin, ProxyServer proxy, SDKGrpc.SDKFutureStub agonesService,
+                                    dev.agones.sdk.alpha.SDKGrpc.SDKFutureStub alphaAgonesService) {
+        this.proxy = proxy;
+        this.agonesService = agonesService;
+        this.alphaAgonesService = alphaAgonesService;
+
+        proxy.getScheduler().buildTask(plugin, this::adjust)
+                .delay(SAMPLE_INTERVAL.toMillis(), TimeUnit.MILLISECONDS)
+                .repeat(SAMPLE_INTERVAL.toMillis(), TimeUnit.MILLISECONDS)
+                .schedule();
+    }
+
+    /**
+     * Stops adjusting the capacity, e.g. because something else has taken control of it.
+     */
+    public void pause() {
+        this.paused = true;
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    private void adjust() {
+        if (this.paused) return;
+
+        double pressure = this.samplePressure();
+        int players = this.proxy.getPlayerCount();
+
+        int target;
+        if (players >= MIN_PLAYERS_TO_EXTRAPOLATE) {
+            target = (int) (players / Math.max(pressure, 0.01));
+        } else if (pressure < STEP_UP_PRESSURE) {
+            target = this.capacity + CAPACITY_STEP;
+        } else if (pressure > 1) {
+            target = this.capacity - CAPACITY_STEP;
+        } else {
+            target = this.capacity;
+        }
+        target = Math.max(MIN_CAPACITY, Math.min(MAX_CAPACITY, target));
+        // Agones rejects player connects over capacity, so it must never go below the players already here
+        target = Math.max(players, target);
+
+        int headroom = target - players;
+        if (PUBLISH_LABELS && headroom != this.publishedHeadroom) {
+            this.publishedHeadroom = headroom;
+            this.setLabel("proxy-headroom", String.valueOf(headroom));
+        }
+        if (Math.abs(target - this.capacity) < MIN_CAPACITY_CHANGE && this.capacity >= players) return;
+
+        LOGGER.info("Changing player capacity from {} to {} (players: {}, pressure: {})", this.capacity, target, players,
+                "%.2f".formatted(pressure));
+        this.capacity = target;
+        this.setCapacity(target);
+    }
+
+    /**
+     * @return how loaded the proxy is relative to its targets, where 1 is at target. The highest signal is used.
+     */
+    private double samplePressure() {
+        long now = System.nanoTime();
+        double elapsedMillis = (now - this.lastSampleNanos) / 1_000_000.0;
+        this.lastSampleNanos = now;
+
+        long heapMax = this.memoryBean.getHeapMemoryUsage().getMax();
+        double heapUsage = heapMax > 0 ? (double) this.heapUsedAfterGc() / heapMax : 0;
+
+        long gcTimeMillis = this.totalGcTimeMillis();
+        double gcTime = (gcTimeMillis - this.lastGcTimeMillis) / elapsedMillis;
+        this.lastGcTimeMillis = gcTimeMillis;
+
+        double cpuUsage = this.osBean == null ? 0 : Math.max(0, this.osBean.getProcessCpuLoad());
+        double loopLagMillis = this.loopLagNanos.get() / 1_000_000.0;
+        this.probeEventLoops();
+
+        LOGGER.debug("Load: heap {}, GC {}, CPU {}, event loop lag {}ms", heapUsage, gcTime, cpuUsage, loopLagMillis);
+        return Math.max(Math.max(heapUsage / TARGET_HEAP_USAGE, gcTime / TARGET_GC_TIME),
+                Math.max(cpuUsage / TARGET_CPU_USAGE, loopLagMillis / TARGET_LOOP_LAG_MILLIS));
+    }
+
+    // Current usage includes garbage not yet collected, so what was left after each pool's last collection is used
+    private long heapUsedAfterGc() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : this.heapPools) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage != null) used += usage.getUsed();
+        }
+        return used;
+    }
+
+    private long totalGcTimeMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gcBean.getCollectionTime());
+        }
+        return total;
+    }
+
+    /**
+     * Measures how long a task waits to run on each of Velocity's event loops. The result is read in the next sample.
+     */
+    private void probeEventLoops() {
+        EventLoopGroup group = this.findEventLoopGroup();
+        if (group == null) return;
+
+        this.loopLagNanos.set(0);
+        for (EventExecutor executor : group) {
+            long submittedAt = System.nanoTime();
+            executor.execute(() -> this.loopLagNanos.accumulateAndGet(System.nanoTime() - submittedAt, Math::max));
+        }
+    }
+
+    // Velocity doesn't expose its event loops, so they are found through a player's channel
+    private @Nullable EventLoopGroup findEventLoopGroup() {
+        if (this.eventLoopGroup != null) return this.eventLoopGroup;
+
+        for (Player player : this.proxy.getAllPlayers()) {
+            Object minecraftConnection = ReflectionUtils.get(player, player.getClass(), "connection", Object.class);
+            if (minecraftConnection == null) return null;
+
+            Channel channel = ReflectionUtils.get(minecraftConnection, minecraftConnection.getClass(), "channel", Channel.class);
+            if (channel == null) return null;
+
+            this.eventLoopGroup = channel.eventLoop().parent();
+            return this.eventLoopGroup;
+        }
+        return null;
+    }
+
+    private void setCapacity(int capacity) {
+        ListenableFuture<AlphaAgonesSDKProto.Empty> response = this.alphaAgonesService.setPlayerCapacity(
+                AlphaAgonesSDKProto.Count.newBuilder().setCount(capacity).build()
+        );
+
+        Futures.addCallback(response, FunctionalFutureCallback.create(
+                result -> {
+                },
+                error -> LOGGER.error("Failed to set player capacity ({}): {}", capacity, error)
+        ), ForkJoinPool.commonPool());
+    }
+
+    private void setLabel(String key, String value) {
+        ListenableFuture<AgonesSDKProto.Empty> response = this.agonesService.setLabel(
+                AgonesSDKProto.KeyValue.newBuilder().setKey(key).setValue(value).build()
+        );
+
+        Futures.addCallback(response, FunctionalFutureCallback.create(
+                result -> {
+                },
+                error -> LOGGER.error("Failed to set label {}: {}", key, error)
+        ), ForkJoinPool.commonPool());
+    }
+}
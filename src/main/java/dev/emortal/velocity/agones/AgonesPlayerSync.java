@@ -0,0 +1,201 @@
+package dev.emortal.velocity.agones;
+
+import dev.emortal.velocity.CorePlugin;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.velocitypowered.api.proxy.ProxyServer;
+import dev.agones.sdk.alpha.AlphaAgonesSDKProto;
+import dev.emortal.api.utils.callback.FunctionalFutureCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the Agones sidecar's player tracking in line with the players on this proxy.
+ * <p>
+ * Logins and disconnects only update the local set of connected players. The differences between that and what the
+ * sidecar was last told are sent on a short interval, with a cap on how many RPCs each sync sends, so a restart or
+ * mass disconnect is spread out rather than sent all at once. The SDK has no batch call, so each player is still one
+ * RPC. The sidecar's list is periodically compared with the local set, and any drift is logged and corrected.
+ * <p>
+ * While requests are failing, e.g. because the sidecar is down, syncs back off exponentially and send a single request
+ * to probe whether it is back, rather than a full batch every interval.
+ */
+public class AgonesPlayerSync {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AgonesPlayerSync.class);
+
+    private static final Duration SYNC_INTERVAL = Duration.ofMillis(250);
+    private static final Duration RECONCILE_INTERVAL = Duration.ofMinutes(1);
+    private static final int MAX_RPCS_PER_SYNC = 50;
+    private static final Duration MAX_BACKOFF = Duration.ofSeconds(30);
+
+    private final dev.agones.sdk.alpha.SDKGrpc.SDKFutureStub alphaAgonesService;
+
+    // The players on this proxy
+    private final Set<UUID> connectedPlayers = ConcurrentHashMap.newKeySet();
+    // The players the sidecar is believed to be tracking
+    private final Set<UUID> syncedPlayers = ConcurrentHashMap.newKeySet();
+    private final Set<UUID> inFlight = ConcurrentHashMap.newKeySet();
+    // Players whose request completed after the sidecar's list was last requested, so the list may be out of date for them
+    private final Set<UUID> changedSinceSnapshot = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder alreadyConnected = new LongAdder();
+    private final LongAdder notConnected = new LongAdder();
+    private final LongAdder failedRequests = new LongAdder();
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long nextSyncNanos = System.nanoTime();
+
+    public AgonesPlayerSync(CorePlugin plugin, ProxyServer proxy, dev.agones.sdk.alpha.SDKGrpc.SDKFutureStub alphaAgonesService) {
+        this.alphaAgonesService = alphaAgonesService;
+
+        proxy.getScheduler().buildTask(plugin, this::sync)
+                .repeat(SYNC_INTERVAL.toMillis(), TimeUnit.MILLISECONDS)
+                .schedule();
+        proxy.getScheduler().buildTask(plugin, this::reconcile)
+                .repeat(RECONCILE_INTERVAL.toMillis(), TimeUnit.MILLISECONDS)
+                .schedule();
+    }
+
+    public void playerConnected(UUID playerId) {
+        this.connectedPlayers.add(playerId);
+    }
+
+    public void playerDisconnected(UUID playerId) {
+        this.connectedPlayers.remove(playerId);
+    }
+
+    public int getConnectedPlayerCount() {
+        return this.connectedPlayers.size();
+    }
+
+    private void sync() {
+        if (System.nanoTime() - this.nextSyncNanos < 0) return;
+
+        // Only probe with one request until the sidecar responds again
+        int budget = this.consecutiveFailures.get() > 0 ? 1 - this.inFlight.size() : MAX_RPCS_PER_SYNC - this.inFlight.size();
+
+        for (UUID playerId : this.connectedPlayers) {
+            if (budget <= 0) return;
+            if (this.syncedPlayers.contains(playerId) || !this.inFlight.add(playerId)) continue;
+
+            this.sendConnect(playerId);
+            budget--;
+        }
+
+        for (UUID playerId : this.syncedPlayers) {
+            if (budget <= 0) return;
+            if (this.connectedPlayers.contains(playerId) || !this.inFlight.add(playerId)) continue;
+
+            this.sendDisconnect(playerId);
+            budget--;
+        }
+    }
+
+    private void sendConnect(UUID playerId) {
+        ListenableFuture<AlphaAgonesSDKProto.Bool> response = this.alphaAgonesService.playerConnect(
+                AlphaAgonesSDKProto.PlayerID.newBuilder().setPlayerID(playerId.toString()).build()
+        );
+
+        Futures.addCallback(response, FunctionalFutureCallback.create(
+                result -> {
+                    // False means the sidecar already had the player, which is still the state we want
+                    if (!result.getBool()) this.alreadyConnected.increment();
+                    this.consecutiveFailures.set(0);
+                    this.syncedPlayers.add(playerId);
+                    this.changedSinceSnapshot.add(playerId);
+                    this.inFlight.remove(playerId);
+                },
+                error -> {
+                    this.failedRequests.increment();
+                    this.backOff();
+                    this.inFlight.remove(playerId);
+                }
+        ), ForkJoinPool.commonPool());
+    }
+
+    private void sendDisconnect(UUID playerId) {
+        ListenableFuture<AlphaAgonesSDKProto.Bool> response = this.alphaAgonesService.playerDisconnect(
+                AlphaAgonesSDKProto.PlayerID.newBuilder().setPlayerID(playerId.toString()).build()
+        );
+
+        Futures.addCallback(response, FunctionalFutureCallback.create(
+                result -> {
+                    if (!result.getBool()) this.notConnected.increment();
+                    this.consecutiveFailures.set(0);
+                    this.syncedPlayers.remove(playerId);
+                    this.changedSinceSnapshot.add(playerId);
+                    this.inFlight.remove(playerId);
+                },
+                error -> {
+                    this.failedRequests.increment();
+                    this.backOff();
+                    this.inFlight.remove(playerId);
+                }
+        ), ForkJoinPool.commonPool());
+    }
+
+    private synchronized void backOff() {
+        long now = System.nanoTime();
+        // The rest of a batch failing together only counts once
+        if (now - this.nextSyncNanos < 0) return;
+
+        int failures = this.consecutiveFailures.incrementAndGet();
+        long backoffNanos = Math.min(MAX_BACKOFF.toNanos(), SYNC_INTERVAL.toNanos() << Math.min(failures, 16));
+        this.nextSyncNanos = now + backoffNanos;
+
+        if (failures == 1) LOGGER.warn("Agones player sync request failed, backing off until the sidecar responds");
+    }
+
+    private void reconcile() {
+        long alreadyConnected = this.alreadyConnected.sumThenReset();
+        long notConnected = this.notConnected.sumThenReset();
+        long failedRequests = this.failedRequests.sumThenReset();
+        if (alreadyConnected > 0 || notConnected > 0 || failedRequests > 0) {
+            LOGGER.warn("Agones player sync over the last {}s: {} players were already connected, {} were not connected, {} requests failed",
+                    RECONCILE_INTERVAL.toSeconds(), alreadyConnected, notConnected, failedRequests);
+        }
+
+        this.changedSinceSnapshot.clear();
+        // There is nothing to compare against while the sidecar isn't responding
+        if (this.consecutiveFailures.get() > 0) return;
+
+        ListenableFuture<AlphaAgonesSDKProto.PlayerIDList> response = this.alphaAgonesService.getConnectedPlayers(AlphaAgonesSDKProto.Empty.getDefaultInstance());
+
+        Futures.addCallback(response, FunctionalFutureCallback.create(
+                result -> {
+                    Set<UUID> sidecarPlayers = result.getListList().stream().map(UUID::fromString).collect(Collectors.toSet());
+
+                    // Drift is where the sidecar disagrees with what it has been told. Players with a request in
+                    // flight, or one that completed after the list was taken, are expected to differ and are left alone.
+                    List<UUID> missing = this.syncedPlayers.stream()
+                            .filter(playerId -> !sidecarPlayers.contains(playerId) && this.isUnchanged(playerId))
+                            .toList();
+                    List<UUID> extra = sidecarPlayers.stream()
+                            .filter(playerId -> !this.syncedPlayers.contains(playerId) && this.isUnchanged(playerId))
+                            .toList();
+                    if (missing.isEmpty() && extra.isEmpty()) return;
+
+                    LOGGER.warn("Agones player list has drifted ({} missing, {} extra), correcting it", missing.size(), extra.size());
+                    // The next sync sends whatever is needed to get from the sidecar's actual state to ours
+                    missing.forEach(this.syncedPlayers::remove);
+                    this.syncedPlayers.addAll(extra);
+                },
+                error -> LOGGER.error("Failed to get connected players from Agones", error)
+        ), ForkJoinPool.commonPool());
+    }
+
+    private boolean isUnchanged(UUID playerId) {
+        return !this.inFlight.contains(playerId) && !this.changedSinceSnapshot.contains(playerId);
+    }
+}
@@ -4,6 +4,15 @@ import dev.emortal.api.service.ServerDiscoveryProto;
 
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
-public record PlayerTransportEvent(Set<UUID> players, ServerDiscoveryProto.ConnectableServer server) {
+/**
+ * @param result completed by the handler once every player's connection attempt has finished
+ */
+public record PlayerTransportEvent(Set<UUID> players, ServerDiscoveryProto.ConnectableServer server,
+                                   CompletableFuture<TransportResult> result) {
+
+    public PlayerTransportEvent(Set<UUID> players, ServerDiscoveryProto.ConnectableServer server) {
+        this(players, server, new CompletableFuture<>());
+    }
 }
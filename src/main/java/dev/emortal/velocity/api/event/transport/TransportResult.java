@@ -0,0 +1,27 @@
+package dev.emortal.velocity.api.event.transport;
+
+import java.util.Map;
+import java.util.UUID;
+
+public record TransportResult(Map<UUID, Outcome> outcomes) {
+
+    public long count(Outcome outcome) {
+        return this.outcomes.values().stream().filter(value -> value == outcome).count();
+    }
+
+    public enum Outcome {
+        CONNECTED,
+        ALREADY_CONNECTED,
+        // The target server or a listener refused the connection
+        REJECTED,
+        // The player isn't on this proxy
+        NOT_ONLINE,
+        // The player is still logging in, and was given the server as their matchmaking assignment instead
+        ASSIGNED,
+        FAILED;
+
+        public boolean isOnServer() {
+            return this == CONNECTED || this == ALREADY_CONNECTED;
+        }
+    }
+}
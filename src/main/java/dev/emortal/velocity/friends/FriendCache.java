@@ -4,7 +4,6 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.event.connection.DisconnectEvent;
-import com.velocitypowered.api.event.connection.PostLoginEvent;
 import dev.emortal.api.service.FriendGrpc;
 import dev.emortal.api.service.FriendProto;
 import dev.emortal.api.utils.GrpcStubCollection;
@@ -15,12 +14,15 @@ import java.time.Instant;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 
 public class FriendCache {
     private final Map<UUID, List<CachedFriend>> friendMap = new ConcurrentHashMap<>();
+    // The load started by each player's current login, so a load that finishes after they leave isn't cached
+    private final Map<UUID, CompletableFuture<List<CachedFriend>>> pendingLoads = new ConcurrentHashMap<>();
     private final FriendGrpc.FriendFutureStub friendService;
 
     public FriendCache() {
@@ -48,27 +50,51 @@ public class FriendCache {
         this.friendMap.remove(playerId);
     }
 
-    @Subscribe
-    public void onPlayerLogin(PostLoginEvent event) {
-        String playerId = event.getPlayer().getUniqueId().toString();
+    /**
+     * Loads the friends of a player into the cache. This is started by the login pipeline as soon as the player's
+     * profile is known, so the list is usually ready by the time they finish logging in. The result is only cached if
+     * the player hasn't disconnected since.
+     */
+    public CompletableFuture<List<CachedFriend>> load(UUID playerId) {
+        CompletableFuture<List<CachedFriend>> future = new CompletableFuture<>();
+        this.pendingLoads.put(playerId, future);
+
         ListenableFuture<FriendProto.FriendListResponse> response = this.friendService
-                .getFriendList(FriendProto.PlayerRequest.newBuilder().setPlayerId(playerId).build());
+                .getFriendList(FriendProto.PlayerRequest.newBuilder().setPlayerId(playerId.toString()).build());
 
         Futures.addCallback(response, FunctionalFutureCallback.create(
                 result -> {
-                    this.set(event.getPlayer().getUniqueId(), result.getFriendsList().stream()
+                    List<CachedFriend> friends = result.getFriendsList().stream()
                             .map(friendListPlayer -> new CachedFriend(
                                     UUID.fromString(friendListPlayer.getId()),
                                     GrpcTimestampConverter.reverse(friendListPlayer.getFriendsSince())
-                            )).collect(Collectors.toList()));
+                            )).collect(Collectors.toList());
+                    this.pendingLoads.compute(playerId, (id, pending) -> {
+                        if (pending != future) return pending;
+                        this.set(playerId, friends);
+                        return null;
+                    });
+                    future.complete(friends);
                 },
-                throwable -> this.removeAll(event.getPlayer().getUniqueId())
+                throwable -> {
+                    this.pendingLoads.compute(playerId, (id, pending) -> {
+                        if (pending != future) return pending;
+                        this.removeAll(playerId);
+                        return null;
+                    });
+                    future.completeExceptionally(throwable);
+                }
         ), ForkJoinPool.commonPool());
+        return future;
     }
 
     @Subscribe
     public void onPlayerDisconnect(DisconnectEvent event) {
-        this.removeAll(event.getPlayer().getUniqueId());
+        // Done under the pending load's entry, so a load completing at the same time can't cache the list afterwards
+        this.pendingLoads.compute(event.getPlayer().getUniqueId(), (playerId, pending) -> {
+            this.removeAll(playerId);
+            return null;
+        });
     }
 
     public record CachedFriend(UUID playerId, Instant friendsSince) {
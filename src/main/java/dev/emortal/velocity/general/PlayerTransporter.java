@@ -0,0 +1,106 @@
+package dev.emortal.velocity.general;
+
+import dev.emortal.velocity.api.event.transport.TransportResult;
+import com.velocitypowered.api.proxy.ConnectionRequestBuilder;
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.ProxyServer;
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves a group of players to a server without connecting them all in one burst. At most a fixed number of
+ * connection requests are in flight per transport, and the first wave is staggered so the target server doesn't
+ * receive every handshake at the same moment.
+ */
+public class PlayerTransporter {
+    private static final int MAX_CONCURRENT_CONNECTS = 16;
+    private static final Duration STAGGER = Duration.ofMillis(10);
+
+    private final ProxyServer proxy;
+
+    public PlayerTransporter(ProxyServer proxy) {
+        this.proxy = proxy;
+    }
+
+    public CompletableFuture<TransportResult> transport(Set<UUID> playerIds, RegisteredServer server) {
+        if (playerIds.isEmpty()) return CompletableFuture.completedFuture(new TransportResult(Map.of()));
+
+        CompletableFuture<TransportResult> result = new CompletableFuture<>();
+        Transport transport = new Transport(playerIds.iterator(), playerIds.size(), server, new ConcurrentHashMap<>(), result);
+
+        int initialWave = Math.min(MAX_CONCURRENT_CONNECTS, playerIds.size());
+        for (int i = 0; i < initialWave; i++) {
+            Executor delayed = CompletableFuture.delayedExecutor(STAGGER.toMillis() * i, TimeUnit.MILLISECONDS);
+            delayed.execute(transport::connectNext);
+        }
+        return result;
+    }
+
+    private final class Transport {
+        private final Iterator<UUID> remaining;
+        private final int total;
+        private final RegisteredServer server;
+        private final Map<UUID, TransportResult.Outcome> outcomes;
+        private final CompletableFuture<TransportResult> result;
+
+        private Transport(Iterator<UUID> remaining, int total, RegisteredServer server,
+                          Map<UUID, TransportResult.Outcome> outcomes, CompletableFuture<TransportResult> result) {
+            this.remaining = remaining;
+            this.total = total;
+            this.server = server;
+            this.outcomes = outcomes;
+            this.result = result;
+        }
+
+        private void connectNext() {
+            UUID playerId;
+            synchronized (this.remaining) {
+                if (!this.remaining.hasNext()) return;
+                playerId = this.remaining.next();
+            }
+
+            Optional<Player> player = PlayerTransporter.this.proxy.getPlayer(playerId);
+            if (player.isEmpty()) {
+                this.record(playerId, TransportResult.Outcome.NOT_ONLINE);
+                return;
+            }
+
+            player.get().createConnectionRequest(this.server).connect().whenComplete((connectionResult, throwable) -> {
+                if (throwable != null) {
+                    this.record(playerId, TransportResult.Outcome.FAILED);
+                } else {
+                    this.record(playerId, toOutcome(connectionResult.getStatus()));
+                }
+            });
+        }
+
+        private void record(UUID playerId, TransportResult.Outcome outcome) {
+            this.outcomes.put(playerId, outcome);
+            if (this.outcomes.size() == this.total) {
+                this.result.complete(new TransportResult(Map.copyOf(this.outcomes)));
+                return;
+            }
+
+            this.connectNext();
+        }
+    }
+
+    private static TransportResult.Outcome toOutcome(ConnectionRequestBuilder.Status status) {
+        return switch (status) {
+            case SUCCESS -> TransportResult.Outcome.CONNECTED;
+            case ALREADY_CONNECTED -> TransportResult.Outcome.ALREADY_CONNECTED;
+            case CONNECTION_CANCELLED, SERVER_DISCONNECTED -> TransportResult.Outcome.REJECTED;
+            case CONNECTION_IN_PROGRESS -> TransportResult.Outcome.FAILED;
+        };
+    }
+}
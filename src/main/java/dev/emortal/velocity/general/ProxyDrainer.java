@@ -0,0 +1,210 @@
+package dev.emortal.velocity.general;
+
+import dev.emortal.velocity.CorePlugin;
+import dev.emortal.velocity.agones.AgonesCapacityController;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.velocitypowered.api.event.PostOrder;
+import com.velocitypowered.api.event.ResultedEvent;
+import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.connection.LoginEvent;
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.ProxyServer;
+import com.velocitypowered.api.scheduler.ScheduledTask;
+import dev.agones.sdk.AgonesSDKProto;
+import dev.agones.sdk.SDKGrpc;
+import dev.agones.sdk.alpha.AlphaAgonesSDKProto;
+import dev.emortal.api.utils.callback.FunctionalFutureCallback;
+import dev.emortal.api.utils.callback.FunctionalStreamObserver;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.minimessage.MiniMessage;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Takes the proxy out of service without disconnecting every player at once.
+ * <p>
+ * A drain is started by Agones moving the game server to shutdown or by the drain command. The proxy
+ * stops accepting logins and reports itself as full and draining, so neither the allocator nor the matchmaker sends
+ * players here. Connected players are then disconnected in waves with a message asking them to reconnect, which puts
+ * them on another proxy, and the proxy shuts down once it is empty or the drain timeout is reached.
+ * <p>
+ * Velocity can't hand a player to another proxy, so moving them means disconnecting them. The waves are sized so the
+ * drain finishes within the timeout, which should be less than the pod's termination grace period.
+ * <p>
+ * SIGTERM is left to Velocity, which shuts down immediately. Kubernetes sets the deletion timestamp that starts the
+ * drain before it runs the pod's preStop hook, and only sends SIGTERM once that hook returns, so the pod needs a preStop
+ * hook that waits for at least the drain timeout for players to be moved rather than dropped.
+ */
+public class ProxyDrainer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProxyDrainer.class);
+
+    private static final Component LOGIN_DENIED_MESSAGE = MiniMessage.miniMessage().deserialize("<red>This proxy is restarting, please reconnect");
+    private static final Component DRAIN_MESSAGE = MiniMessage.miniMessage().deserialize("<red>This proxy is restarting, please reconnect to continue playing");
+
+    private static final Duration DRAIN_TIMEOUT = Duration.ofSeconds(Long.parseLong(System.getenv().getOrDefault("PROXY_DRAIN_TIMEOUT_SECONDS", "120")));
+    private static final Duration WAVE_INTERVAL = Duration.ofSeconds(2);
+    private static final int MIN_WAVE_SIZE = 10;
+
+    private final CorePlugin plugin;
+    private final ProxyServer proxy;
+    private final @Nullable SDKGrpc.SDKFutureStub agonesService;
+    private final @Nullable dev.agones.sdk.alpha.SDKGrpc.SDKFutureStub alphaAgonesService;
+    private final @Nullable AgonesCapacityController capacityController;
+
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private volatile boolean agonesShuttingDown;
+    // Written by whichever thread starts the drain and read by the scheduler's wave task
+    private volatile long deadlineNanos;
+    private volatile @Nullable ScheduledTask waveTask;
+
+    public ProxyDrainer(CorePlugin plugin, ProxyServer proxy, @Nullable SDKGrpc.SDKFutureStub agonesService,
+                        @Nullable SDKGrpc.SDKStub standardAgonesService,
+                        @Nullable dev.agones.sdk.alpha.SDKGrpc.SDKFutureStub alphaAgonesService,
+                        @Nullable AgonesCapacityController capacityController) {
+        this.plugin = plugin;
+        this.proxy = proxy;
+        this.agonesService = agonesService;
+        this.alphaAgonesService = alphaAgonesService;
+        this.capacityController = capacityController;
+
+        proxy.getEventManager().register(plugin, this);
+
+        if (standardAgonesService != null) this.watchGameServer(standardAgonesService);
+    }
+
+    public boolean isDraining() {
+        return this.draining.get();
+    }
+
+    /**
+     * @return false if the proxy was already draining
+     */
+    public boolean drain(String cause) {
+        if (!this.draining.compareAndSet(false, true)) return false;
+
+        LOGGER.warn("Draining proxy ({}), {} players will be moved over the next {}s", cause, this.proxy.getPlayerCount(),
+                DRAIN_TIMEOUT.toSeconds());
+        this.stopAccepting();
+
+        this.deadlineNanos = System.nanoTime() + DRAIN_TIMEOUT.toNanos();
+        ScheduledTask waveTask = this.proxy.getScheduler().buildTask(this.plugin, this::disconnectWave)
+                .repeat(WAVE_INTERVAL.toMillis(), TimeUnit.MILLISECONDS)
+                .schedule();
+        this.waveTask = waveTask;
+        // The first wave, or a forced shutdown, may have finished before the task was published
+        if (this.finished.get()) waveTask.cancel();
+        return true;
+    }
+
+    /**
+     * Shuts down now, disconnecting everyone still connected, whether or not a drain is in progress.
+     */
+    public void forceShutdown(String cause) {
+        LOGGER.warn("Forcing shutdown ({}) with {} players connected", cause, this.proxy.getPlayerCount());
+        this.draining.set(true);
+        this.finish();
+    }
+
+    @Subscribe(order = PostOrder.FIRST)
+    public void onLogin(LoginEvent event) {
+        if (this.draining.get()) event.setResult(ResultedEvent.ComponentResult.denied(LOGIN_DENIED_MESSAGE));
+    }
+
+    private void watchGameServer(SDKGrpc.SDKStub standardAgonesService) {
+        standardAgonesService.watchGameServer(AgonesSDKProto.Empty.getDefaultInstance(), FunctionalStreamObserver.create(
+                gameServer -> {
+                    boolean shuttingDown = gameServer.getStatus().getState().equals("Shutdown")
+                            || gameServer.getObjectMeta().getDeletionTimestamp() != 0;
+                    if (!shuttingDown) return;
+
+                    // Repeats of this while draining, e.g. the watch sending every update after deletion, do nothing
+                    this.agonesShuttingDown = true;
+                    this.drain("Agones shutdown");
+                },
+                throwable -> LOGGER.error("Stopped watching the Agones game server, drains will not start on Agones shutdown", throwable),
+                () -> {
+                }
+        ));
+    }
+
+    private void stopAccepting() {
+        if (this.capacityController != null) this.capacityController.pause();
+
+        if (this.alphaAgonesService != null) {
+            ListenableFuture<AlphaAgonesSDKProto.Empty> response = this.alphaAgonesService.setPlayerCapacity(
+                    AlphaAgonesSDKProto.Count.newBuilder().setCount(0).build()
+            );
+
+            Futures.addCallback(response, FunctionalFutureCallback.create(
+                    result -> {
+                    },
+                    error -> LOGGER.error("Failed to set player capacity to 0 for drain: {}", error)
+            ), ForkJoinPool.commonPool());
+        }
+
+        // The matchmaker skips proxies with this label when assigning players
+        if (this.agonesService != null) {
+            ListenableFuture<AgonesSDKProto.Empty> response = this.agonesService.setLabel(
+                    AgonesSDKProto.KeyValue.newBuilder().setKey("draining").setValue("true").build()
+            );
+
+            Futures.addCallback(response, FunctionalFutureCallback.create(
+                    result -> {
+                    },
+                    error -> LOGGER.error("Failed to set draining label: {}", error)
+            ), ForkJoinPool.commonPool());
+        }
+    }
+
+    private void disconnectWave() {
+        int players = this.proxy.getPlayerCount();
+        long remainingNanos = this.deadlineNanos - System.nanoTime();
+
+        if (players == 0) {
+            LOGGER.info("Drain complete, shutting down");
+            this.finish();
+            return;
+        }
+        if (remainingNanos <= 0) {
+            LOGGER.warn("Drain timed out with {} players still connected, shutting down", players);
+            this.finish();
+            return;
+        }
+
+        // Spread the remaining players over the waves left before the deadline
+        long wavesLeft = Math.max(1, remainingNanos / WAVE_INTERVAL.toNanos());
+        int waveSize = (int) Math.max(MIN_WAVE_SIZE, (players + wavesLeft - 1) / wavesLeft);
+
+        LOGGER.info("Disconnecting {} of {} players for drain", Math.min(waveSize, players), players);
+        Iterator<Player> iterator = this.proxy.getAllPlayers().iterator();
+        for (int i = 0; i < waveSize && iterator.hasNext(); i++) {
+            iterator.next().disconnect(DRAIN_MESSAGE);
+        }
+    }
+
+    private void finish() {
+        if (!this.finished.compareAndSet(false, true)) return;
+        if (this.waveTask != null) this.waveTask.cancel();
+
+        // When Agones started the drain the pod is already being deleted, and only needs to be told otherwise
+        if (this.agonesService != null && !this.agonesShuttingDown) {
+            ListenableFuture<AgonesSDKProto.Empty> response = this.agonesService.shutdown(AgonesSDKProto.Empty.getDefaultInstance());
+
+            Futures.addCallback(response, FunctionalFutureCallback.create(
+                    result -> {
+                    },
+                    error -> LOGGER.error("Failed to tell Agones the server is shutting down: {}", error)
+            ), ForkJoinPool.commonPool());
+        }
+        this.proxy.shutdown(DRAIN_MESSAGE);
+    }
+}
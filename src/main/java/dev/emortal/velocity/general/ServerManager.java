@@ -7,77 +7,232 @@ import dev.emortal.api.utils.callback.FunctionalFutureCallback;
 import dev.emortal.velocity.CorePlugin;
 import dev.emortal.velocity.api.event.server.SwapToTowerDefenceEvent;
 import dev.emortal.velocity.api.event.transport.PlayerTransportEvent;
+import dev.emortal.velocity.api.event.transport.TransportResult;
+import dev.emortal.velocity.utils.Batcher;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.proxy.Player;
 import com.velocitypowered.api.proxy.ProxyServer;
 import com.velocitypowered.api.proxy.server.RegisteredServer;
-import com.velocitypowered.api.proxy.server.ServerInfo;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.net.InetSocketAddress;
-import java.util.UUID;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 public class ServerManager {
     private static final Logger LOGGER = LoggerFactory.getLogger(ServerManager.class);
 
+    // Lobby requests that arrive within the window (e.g. a game ending) are routed with a single discovery request
+    private static final Duration LOBBY_BATCH_WINDOW = Duration.ofMillis(5);
+    // Caps how many players are sent to the one server a discovery request returns
+    private static final int MAX_LOBBY_BATCH_SIZE = 25;
+    // Tower Defence swaps within the window (e.g. a party clicking the NPC together) are sent to the same server
+    private static final Duration TOWER_DEFENCE_BATCH_WINDOW = Duration.ofMillis(50);
+    // Discovery isn't told how many players a Tower Defence request is for, so a batch must fit in a single game
+    private static final int MAX_TOWER_DEFENCE_BATCH_SIZE = Integer.parseInt(System.getenv().getOrDefault("TOWER_DEFENCE_MAX_PLAYERS", "2"));
+    private static final Duration REQUEST_DEADLINE = Duration.ofSeconds(5);
+
     private final ServerDiscoveryGrpc.ServerDiscoveryFutureStub serverDiscoveryService;
     private final ProxyServer proxy;
+    private final ServerRegistry serverRegistry;
+    private final ServerPingCache pingCache;
+    private final PlayerTransporter playerTransporter;
+
+    private volatile @Nullable String lastHealthyLobbyId;
+
+    private final Batcher<CompletableFuture<RegisteredServer>> lobbyBatcher = new Batcher<>(LOBBY_BATCH_WINDOW, MAX_LOBBY_BATCH_SIZE, this::routeLobbyBatch);
+    private final Batcher<Player> quickJoinBatcher = new Batcher<>(TOWER_DEFENCE_BATCH_WINDOW, MAX_TOWER_DEFENCE_BATCH_SIZE,
+            batch -> this.routeTowerDefenceBatch(batch, true));
+    private final Batcher<Player> newGameBatcher = new Batcher<>(TOWER_DEFENCE_BATCH_WINDOW, MAX_TOWER_DEFENCE_BATCH_SIZE,
+            batch -> this.routeTowerDefenceBatch(batch, false));
 
-    public ServerManager(CorePlugin plugin, ProxyServer proxy) {
+    public ServerManager(CorePlugin plugin, ProxyServer proxy, ServerRegistry serverRegistry, ServerPingCache pingCache) {
         this.serverDiscoveryService = GrpcStubCollection.getServerDiscoveryService().orElse(null);
         this.proxy = proxy;
+        this.serverRegistry = serverRegistry;
+        this.pingCache = pingCache;
+        this.playerTransporter = new PlayerTransporter(proxy);
 
         this.proxy.getEventManager().register(plugin, this);
     }
 
     public void sendToLobbyServer(Player player) {
-        ListenableFuture<ServerDiscoveryProto.LobbyServer> lobbyServerFuture = this.serverDiscoveryService.getSuggestedLobbyServer(
-                ServerDiscoveryProto.ServerRequest.newBuilder().setPlayerCount(1).build());
-
-        Futures.addCallback(lobbyServerFuture, FunctionalFutureCallback.create(
-                lobbyServer -> {
-                    ServerDiscoveryProto.ConnectableServer connectableServer = lobbyServer.getConnectableServer();
-                    this.connectPlayerToServer(player, connectableServer);
-                },
-                throwable -> LOGGER.error("Failed to get lobby server", throwable)
-        ), ForkJoinPool.commonPool());
+        this.requestLobbyServer().thenAccept(server -> this.connect(player, server));
+    }
+
+    /**
+     * Requests a lobby for one player. Requests made close together are batched into a single discovery request.
+     */
+    public CompletableFuture<RegisteredServer> requestLobbyServer() {
+        CompletableFuture<RegisteredServer> future = new CompletableFuture<>();
+        this.lobbyBatcher.add(future);
+        return future;
+    }
+
+    private void routeLobbyBatch(List<CompletableFuture<RegisteredServer>> batch) {
+        long startTime = System.nanoTime();
+
+        ServerDiscoveryProto.ServerRequest request = ServerDiscoveryProto.ServerRequest.newBuilder().setPlayerCount(batch.size()).build();
+
+        this.suggest(() -> Futures.transform(this.discovery().getSuggestedLobbyServer(request),
+                ServerDiscoveryProto.LobbyServer::getConnectableServer, ForkJoinPool.commonPool())
+        ).whenComplete((lobbyServer, throwable) -> {
+            RegisteredServer registeredServer = null;
+            if (throwable == null) {
+                registeredServer = this.healthyLobby(lobbyServer);
+                if (registeredServer == null) {
+                    throwable = new IllegalStateException("Discovery suggested " + lobbyServer.getId()
+                            + ", which is slow or unreachable from this proxy, and there is no healthy lobby to fall back to");
+                }
+            }
+
+            if (throwable != null) {
+                LOGGER.error("Failed to get lobby server for {} players", batch.size(), throwable);
+                for (CompletableFuture<RegisteredServer> future : batch) {
+                    future.completeExceptionally(throwable);
+                }
+                return;
+            }
+
+            LOGGER.debug("Routed a batch of {} players to lobby {} in {}ms", batch.size(),
+                    registeredServer.getServerInfo().getName(), (System.nanoTime() - startTime) / 1_000_000);
+
+            for (CompletableFuture<RegisteredServer> future : batch) {
+                future.complete(registeredServer);
+            }
+        });
+    }
+
+    /**
+     * Uses the suggested lobby if this proxy sees it as healthy, and otherwise the last healthy lobby discovery
+     * suggested. Discovery isn't asked again, as every request counts the players against the lobby it returns.
+     *
+     * @return the lobby, or null if neither is healthy
+     */
+    private @Nullable RegisteredServer healthyLobby(ServerDiscoveryProto.ConnectableServer suggestedServer) {
+        if (this.pingCache.isHealthy(suggestedServer.getId())) {
+            this.lastHealthyLobbyId = suggestedServer.getId();
+            return this.serverRegistry.getOrRegister(suggestedServer);
+        }
+
+        String fallbackId = this.lastHealthyLobbyId;
+        LOGGER.debug("Vetoed suggested lobby {} as it is slow or unreachable from this proxy, falling back to {}",
+                suggestedServer.getId(), fallbackId);
+        if (fallbackId == null || fallbackId.equals(suggestedServer.getId()) || !this.pingCache.isHealthy(fallbackId)) return null;
+
+        return this.proxy.getServer(fallbackId).orElse(null);
     }
 
     @Subscribe
     public void handlePlayerTransport(PlayerTransportEvent event) {
-        for (UUID playerId : event.players()) {
-            this.proxy.getPlayer(playerId).ifPresent(player -> {
-                this.connectPlayerToServer(player, event.server());
-            });
+        // The gRPC response waits on the result, so it has to be completed even if this handler fails
+        try {
+            this.transport(event);
+        } catch (RuntimeException exception) {
+            LOGGER.error("Failed to transport players to {}", event.server().getId(), exception);
+            event.result().completeExceptionally(exception);
         }
     }
 
+    private void transport(PlayerTransportEvent event) {
+        long startTime = System.nanoTime();
+        RegisteredServer server = this.serverRegistry.getOrRegister(event.server());
+
+        this.serverRegistry.beginTransport(server);
+        CompletableFuture<TransportResult> transportFuture;
+        try {
+            transportFuture = this.playerTransporter.transport(event.players(), server);
+        } catch (RuntimeException exception) {
+            this.serverRegistry.endTransport(server);
+            throw exception;
+        }
+
+        transportFuture.whenComplete((result, throwable) -> {
+            this.serverRegistry.endTransport(server);
+            if (throwable != null) {
+                event.result().completeExceptionally(throwable);
+                return;
+            }
+
+            LOGGER.debug("Transported {}/{} players to {} in {}ms", result.count(TransportResult.Outcome.CONNECTED),
+                    event.players().size(), server.getServerInfo().getName(), (System.nanoTime() - startTime) / 1_000_000);
+            event.result().complete(result);
+        });
+    }
+
     @Subscribe
     public void onTowerDefenceChange(SwapToTowerDefenceEvent event) {
         this.sendToTowerDefenceServer(event.player(), event.quickJoin());
     }
 
     public void sendToTowerDefenceServer(Player player, boolean quickJoin) {
-        ListenableFuture<ServerDiscoveryProto.ConnectableServer> tdServerFuture = this.serverDiscoveryService.getSuggestedTowerDefenceServer(
-                ServerDiscoveryProto.TowerDefenceServerRequest.newBuilder()
-                        .setInProgress(quickJoin)
-                        .build());
-
-        Futures.addCallback(tdServerFuture, FunctionalFutureCallback.create(
-                connectableServer -> this.connectPlayerToServer(player, connectableServer),
-                throwable -> LOGGER.error("Failed to get TD server", throwable)
-        ), ForkJoinPool.commonPool());
+        if (quickJoin) {
+            this.quickJoinBatcher.add(player);
+        } else {
+            this.newGameBatcher.add(player);
+        }
     }
 
-    private void connectPlayerToServer(Player player, ServerDiscoveryProto.ConnectableServer connectableServer) {
-        RegisteredServer registeredServer = this.proxy.getServer(connectableServer.getId()).orElseGet(() -> {
-            InetSocketAddress address = new InetSocketAddress(connectableServer.getAddress(), connectableServer.getPort());
-            return this.proxy.registerServer(new ServerInfo(connectableServer.getId(), address));
+    private void routeTowerDefenceBatch(List<Player> batch, boolean quickJoin) {
+        long startTime = System.nanoTime();
+        ServerDiscoveryProto.TowerDefenceServerRequest request = ServerDiscoveryProto.TowerDefenceServerRequest.newBuilder()
+                .setInProgress(quickJoin)
+                .build();
+
+        this.suggest(() -> this.discovery().getSuggestedTowerDefenceServer(request)).whenComplete((connectableServer, throwable) -> {
+            if (throwable != null) {
+                LOGGER.error("Failed to get TD server for {} players", batch.size(), throwable);
+                return;
+            }
+            // Each request can allocate a new game, so a vetoed suggestion fails the batch rather than asking again
+            if (!this.pingCache.isHealthy(connectableServer.getId())) {
+                LOGGER.warn("Not sending {} players to TD server {} as it is slow or unreachable from this proxy",
+                        batch.size(), connectableServer.getId());
+                return;
+            }
+
+            LOGGER.debug("Routed a batch of {} players to TD server {} in {}ms", batch.size(),
+                    connectableServer.getId(), (System.nanoTime() - startTime) / 1_000_000);
+
+            RegisteredServer server = this.serverRegistry.getOrRegister(connectableServer);
+            for (Player player : batch) {
+                this.connect(player, server);
+            }
         });
-        player.createConnectionRequest(registeredServer).fireAndForget();
+    }
+
+    /**
+     * Makes a single discovery request. A failure to build the request completes the result exceptionally, as it
+     * would otherwise be thrown on the batcher's thread and leave the batch waiting forever.
+     */
+    private CompletableFuture<ServerDiscoveryProto.ConnectableServer> suggest(Supplier<ListenableFuture<ServerDiscoveryProto.ConnectableServer>> request) {
+        CompletableFuture<ServerDiscoveryProto.ConnectableServer> result = new CompletableFuture<>();
+        try {
+            Futures.addCallback(request.get(), FunctionalFutureCallback.create(
+                    result::complete,
+                    result::completeExceptionally
+            ), ForkJoinPool.commonPool());
+        } catch (RuntimeException exception) {
+            result.completeExceptionally(exception);
+        }
+        return result;
+    }
+
+    private ServerDiscoveryGrpc.ServerDiscoveryFutureStub discovery() {
+        if (this.serverDiscoveryService == null) throw new IllegalStateException("Server discovery is not available");
+        return this.serverDiscoveryService.withDeadlineAfter(REQUEST_DEADLINE.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void connect(Player player, RegisteredServer server) {
+        this.serverRegistry.beginTransport(server);
+        player.createConnectionRequest(server).connectWithIndication()
+                .whenComplete((connected, throwable) -> this.serverRegistry.endTransport(server));
     }
 }
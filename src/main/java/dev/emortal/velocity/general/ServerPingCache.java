@@ -0,0 +1,118 @@
+package dev.emortal.velocity.general;
+
+import dev.emortal.velocity.CorePlugin;
+import com.velocitypowered.api.proxy.ProxyServer;
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * This proxy's own view of backend health, from pinging the registered servers in the background. Each server keeps
+ * a moving average of its ping time and of how often its pings fail.
+ * <p>
+ * Only a bounded number of pings are in flight at once. Servers that don't get a ping in one round are likely to in
+ * the next, as the order is shuffled each round.
+ */
+public class ServerPingCache {
+    private static final Duration PROBE_INTERVAL = Duration.ofSeconds(5);
+    private static final Duration PING_TIMEOUT = Duration.ofSeconds(2);
+    private static final int MAX_CONCURRENT_PINGS = 16;
+
+    // Weight given to the latest ping when updating the averages
+    private static final double SMOOTHING = 0.3;
+    private static final double MAX_HEALTHY_RTT_MILLIS = 500;
+    private static final double MAX_HEALTHY_FAILURE_RATE = 0.5;
+
+    private final ProxyServer proxy;
+
+    private final Map<String, Health> health = new ConcurrentHashMap<>();
+    private final Semaphore pingPermits = new Semaphore(MAX_CONCURRENT_PINGS);
+
+    public ServerPingCache(CorePlugin plugin, ProxyServer proxy) {
+        this.proxy = proxy;
+
+        proxy.getScheduler().buildTask(plugin, this::probe)
+                .repeat(PROBE_INTERVAL.toMillis(), TimeUnit.MILLISECONDS)
+                .schedule();
+    }
+
+    /**
+     * @return false if this proxy currently sees the server as slow or unreachable. Servers that haven't been pinged
+     * yet are assumed to be healthy.
+     */
+    public boolean isHealthy(String serverId) {
+        Health serverHealth = this.health.get(serverId);
+        return serverHealth == null || serverHealth.isHealthy();
+    }
+
+    /**
+     * @return true if the server's recent pings have mostly failed
+     */
+    public boolean isUnreachable(String serverId) {
+        Health serverHealth = this.health.get(serverId);
+        return serverHealth != null && serverHealth.failureRate > MAX_HEALTHY_FAILURE_RATE;
+    }
+
+    /**
+     * Pings a server now rather than waiting for the next round, recording the result like any other ping.
+     *
+     * @return whether the ping succeeded
+     */
+    public CompletableFuture<Boolean> ping(RegisteredServer server) {
+        String serverId = server.getServerInfo().getName();
+        long startTime = System.nanoTime();
+
+        return server.ping().orTimeout(PING_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS).handle((ping, throwable) -> {
+            Health serverHealth = this.health.computeIfAbsent(serverId, id -> new Health());
+            if (throwable != null) {
+                serverHealth.recordFailure();
+                return false;
+            }
+            serverHealth.recordSuccess((System.nanoTime() - startTime) / 1_000_000.0);
+            return true;
+        });
+    }
+
+    private void probe() {
+        List<RegisteredServer> servers = new ArrayList<>(this.proxy.getAllServers());
+
+        // Forget servers that are no longer registered
+        Set<String> registeredIds = servers.stream().map(server -> server.getServerInfo().getName()).collect(Collectors.toSet());
+        this.health.keySet().retainAll(registeredIds);
+
+        Collections.shuffle(servers);
+        for (RegisteredServer server : servers) {
+            if (!this.pingPermits.tryAcquire()) return;
+
+            this.ping(server).whenComplete((reachable, throwable) -> this.pingPermits.release());
+        }
+    }
+
+    private static final class Health {
+        private volatile double rttMillis = Double.NaN;
+        private volatile double failureRate;
+
+        private synchronized void recordSuccess(double rttMillis) {
+            this.rttMillis = Double.isNaN(this.rttMillis) ? rttMillis : SMOOTHING * rttMillis + (1 - SMOOTHING) * this.rttMillis;
+            this.failureRate = (1 - SMOOTHING) * this.failureRate;
+        }
+
+        private synchronized void recordFailure() {
+            this.failureRate = SMOOTHING + (1 - SMOOTHING) * this.failureRate;
+        }
+
+        private boolean isHealthy() {
+            return this.failureRate <= MAX_HEALTHY_FAILURE_RATE && !(this.rttMillis > MAX_HEALTHY_RTT_MILLIS);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package dev.emortal.velocity.general;
+
+import dev.emortal.velocity.CorePlugin;
+import com.velocitypowered.api.proxy.ProxyServer;
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+import com.velocitypowered.api.proxy.server.ServerInfo;
+import dev.emortal.api.service.ServerDiscoveryProto;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Owns the backend servers registered with Velocity. Every registration goes through here so that concurrent
+ * registrations of the same server can't race, and a server is only unregistered once it has had no players and no
+ * transports in flight for its idle TTL. The TTL is jittered so servers registered together aren't all dropped in
+ * the same sweep. Servers with no players that the {@link ServerPingCache} sees as unreachable are unregistered
+ * without waiting for the TTL.
+ * <p>
+ * Servers are registered lazily, when a player is first sent to them. Server discovery has no list or watch endpoint to
+ * sync from, and its suggestion endpoints allocate or count players, so polling them to register servers ahead of
+ * time would create games and skew player counts. Registering is a local map insert, so doing it on the connect path
+ * costs little.
+ */
+public class ServerRegistry {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ServerRegistry.class);
+
+    private static final Duration IDLE_TTL = Duration.ofMinutes(5);
+    private static final Duration IDLE_TTL_JITTER = Duration.ofMinutes(1);
+    private static final Duration SWEEP_INTERVAL = Duration.ofSeconds(30);
+
+    private final ProxyServer proxy;
+    private final ServerPingCache pingCache;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final LongAdder registrations = new LongAdder();
+    private final LongAdder replacements = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ServerRegistry(CorePlugin plugin, ProxyServer proxy, ServerPingCache pingCache) {
+        this.proxy = proxy;
+        this.pingCache = pingCache;
+
+        proxy.getScheduler().buildTask(plugin, this::sweep)
+                .repeat(SWEEP_INTERVAL.toMillis(), TimeUnit.MILLISECONDS)
+                .schedule();
+    }
+
+    public RegisteredServer getOrRegister(ServerDiscoveryProto.ConnectableServer server) {
+        return this.getOrRegister(server.getId(), server.getAddress(), server.getPort());
+    }
+
+    public RegisteredServer getOrRegister(String id, String host, int port) {
+        // compute holds the entry's lock, so only one thread registers a given server
+        Entry entry = this.entries.compute(id, (key, existing) -> {
+            if (existing != null && hasAddress(existing.server, host, port)) return existing;
+
+            RegisteredServer current = this.proxy.getServer(id).orElse(null);
+            if (current != null && hasAddress(current, host, port)) return new Entry(current);
+
+            // The server has been replaced (e.g. the pod was rescheduled) since it was registered
+            if (current != null) {
+                this.proxy.unregisterServer(current.getServerInfo());
+                this.replacements.increment();
+            }
+
+            this.registrations.increment();
+            // Only resolved here, as resolving blocks on DNS
+            return new Entry(this.proxy.registerServer(new ServerInfo(id, new InetSocketAddress(host, port))));
+        });
+
+        entry.touch();
+        return entry.server;
+    }
+
+    // Compared by the host as given rather than by resolved address, so a changed DNS answer isn't a new server
+    private static boolean hasAddress(RegisteredServer server, String host, int port) {
+        InetSocketAddress address = server.getServerInfo().getAddress();
+        return address.getPort() == port && address.getHostString().equals(host);
+    }
+
+    /**
+     * Marks a transport to the server as started, which stops it being evicted until {@link #endTransport} is called.
+     */
+    public void beginTransport(RegisteredServer server) {
+        Entry entry = this.entries.get(server.getServerInfo().getName());
+        if (entry != null) entry.inFlightTransports.incrementAndGet();
+    }
+
+    public void endTransport(RegisteredServer server) {
+        Entry entry = this.entries.get(server.getServerInfo().getName());
+        if (entry == null) return;
+
+        entry.inFlightTransports.decrementAndGet();
+        entry.touch();
+    }
+
+    /**
+     * Unregisters a server immediately, e.g. because it is known to be dead.
+     */
+    public void unregister(RegisteredServer server) {
+        ServerInfo serverInfo = server.getServerInfo();
+        this.entries.computeIfPresent(serverInfo.getName(), (name, entry) -> entry.server.getServerInfo().equals(serverInfo) ? null : entry);
+        this.proxy.unregisterServer(serverInfo);
+        this.evictions.increment();
+    }
+
+    private void sweep() {
+        long now = System.nanoTime();
+
+        // Servers registered elsewhere (e.g. in the Velocity config) are tracked from when they are first seen
+        for (RegisteredServer server : this.proxy.getAllServers()) {
+            this.entries.computeIfAbsent(server.getServerInfo().getName(), name -> new Entry(server));
+        }
+
+        this.entries.forEach((name, entry) -> {
+            if (!entry.server.getPlayersConnected().isEmpty()) {
+                entry.touch();
+                return;
+            }
+            if (entry.inFlightTransports.get() > 0) return;
+            if (now - entry.lastUsed < entry.idleTtlNanos && !this.pingCache.isUnreachable(name)) return;
+
+            // Removing through the map keeps this atomic with a concurrent getOrRegister
+            if (this.entries.remove(name, entry)) {
+                this.proxy.unregisterServer(entry.server.getServerInfo());
+                this.evictions.increment();
+            }
+        });
+
+        long registrations = this.registrations.sumThenReset();
+        long replacements = this.replacements.sumThenReset();
+        long evictions = this.evictions.sumThenReset();
+        if (registrations > 0 || evictions > 0) {
+            LOGGER.info("Server registry churn over the last {}s: {} registered ({} replaced), {} evicted, {} tracked",
+                    SWEEP_INTERVAL.toSeconds(), registrations, replacements, evictions, this.entries.size());
+        }
+    }
+
+    private static final class Entry {
+        private final RegisteredServer server;
+        private final long idleTtlNanos;
+        private final AtomicInteger inFlightTransports = new AtomicInteger();
+        private volatile long lastUsed = System.nanoTime();
+
+        private Entry(RegisteredServer server) {
+            this.server = server;
+            this.idleTtlNanos = IDLE_TTL.toNanos() + ThreadLocalRandom.current().nextLong(IDLE_TTL_JITTER.toNanos());
+        }
+
+        private void touch() {
+            this.lastUsed = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package dev.emortal.velocity.general.commands;
+
+import dev.emortal.velocity.general.ProxyDrainer;
+import com.mojang.brigadier.builder.LiteralArgumentBuilder;
+import com.mojang.brigadier.context.CommandContext;
+import com.velocitypowered.api.command.BrigadierCommand;
+import com.velocitypowered.api.command.CommandSource;
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.ProxyServer;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.minimessage.MiniMessage;
+
+public class DrainCommand {
+    private static final Component DRAIN_STARTED_MESSAGE = MiniMessage.miniMessage().deserialize("<light_purple>Draining this proxy.");
+    private static final Component ALREADY_DRAINING_MESSAGE = MiniMessage.miniMessage().deserialize("<red>This proxy is already draining.");
+
+    private final ProxyDrainer drainer;
+
+    public DrainCommand(ProxyServer proxy, ProxyDrainer drainer) {
+        this.drainer = drainer;
+
+        proxy.getCommandManager().register(this.createBrigadierCommand());
+    }
+
+    private int executeDrain(CommandContext<CommandSource> context) {
+        CommandSource source = context.getSource();
+        String sourceName = source instanceof Player player ? player.getUsername() : "console";
+
+        source.sendMessage(this.drainer.drain("command by " + sourceName) ? DRAIN_STARTED_MESSAGE : ALREADY_DRAINING_MESSAGE);
+        return 1;
+    }
+
+    private int executeDrainNow(CommandContext<CommandSource> context) {
+        CommandSource source = context.getSource();
+        String sourceName = source instanceof Player player ? player.getUsername() : "console";
+
+        this.drainer.forceShutdown("command by " + sourceName);
+        return 1;
+    }
+
+    private BrigadierCommand createBrigadierCommand() {
+        return new BrigadierCommand(
+                LiteralArgumentBuilder.<CommandSource>literal("drain")
+                        .requires(source -> source.hasPermission("command.drain"))
+                        .executes(this::executeDrain)
+                        .then(LiteralArgumentBuilder.<CommandSource>literal("now")
+                                .executes(this::executeDrainNow))
+        );
+    }
+}
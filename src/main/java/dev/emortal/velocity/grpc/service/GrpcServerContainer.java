@@ -1,5 +1,6 @@
 package dev.emortal.velocity.grpc.service;
 
+import dev.emortal.velocity.matchmaking.PendingAssignments;
 import com.velocitypowered.api.proxy.ProxyServer;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
@@ -12,12 +13,12 @@ public class GrpcServerContainer {
 
     private final Server server;
 
-    public GrpcServerContainer(ProxyServer proxy) {
+    public GrpcServerContainer(ProxyServer proxy, PendingAssignments pendingAssignments) {
         this.server = ServerBuilder.forPort(PORT)
                 .addService(new PrivateMessageReceiverService(proxy))
                 .addService(new VelocityFriendService(proxy))
                 .addService(new VelocityServerService(proxy))
-                .addService(new VelocityPlayerTransporterService(proxy))
+                .addService(new VelocityPlayerTransporterService(proxy, pendingAssignments))
                 .build();
 
         try {
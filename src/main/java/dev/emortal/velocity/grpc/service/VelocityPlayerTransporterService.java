@@ -3,29 +3,85 @@ package dev.emortal.velocity.grpc.service;
 import dev.emortal.api.service.velocity.VelocityPlayerTransporterGrpc;
 import dev.emortal.api.service.velocity.VelocityPlayerTransporterProto;
 import dev.emortal.velocity.api.event.transport.PlayerTransportEvent;
+import dev.emortal.velocity.api.event.transport.TransportResult;
+import dev.emortal.velocity.matchmaking.PendingAssignments;
 import com.google.protobuf.Empty;
 import com.velocitypowered.api.proxy.ProxyServer;
+import io.grpc.Metadata;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
+/**
+ * The response is still {@link Empty}, as the message types belong to the shared API. The outcome for each player is
+ * sent in the {@code transport_outcomes} trailer as comma separated {@code playerId=OUTCOME} pairs, so callers that
+ * don't read it keep working, and any request that was understood gets OK however many players were moved.
+ */
 public class VelocityPlayerTransporterService extends VelocityPlayerTransporterGrpc.VelocityPlayerTransporterImplBase {
+    private static final Metadata.Key<String> OUTCOMES_KEY = Metadata.Key.of("transport_outcomes", Metadata.ASCII_STRING_MARSHALLER);
+
+    // Covers the connects themselves and no subscriber completing the result at all
+    private static final Duration TRANSPORT_TIMEOUT = Duration.ofSeconds(30);
+
     private final ProxyServer server;
+    private final PendingAssignments pendingAssignments;
 
-    public VelocityPlayerTransporterService(ProxyServer proxyServer) {
+    public VelocityPlayerTransporterService(ProxyServer proxyServer, PendingAssignments pendingAssignments) {
         this.server = proxyServer;
+        this.pendingAssignments = pendingAssignments;
     }
 
     @Override
     public void sendToServer(VelocityPlayerTransporterProto.TransportRequest request, StreamObserver<Empty> responseObserver) {
-        this.server.getEventManager().fire(
-                new PlayerTransportEvent(
-                        request.getPlayerIdsList().stream().map(UUID::fromString).collect(Collectors.toUnmodifiableSet()), request.getServer()
-                )
-        );
+        Map<UUID, TransportResult.Outcome> outcomes = new HashMap<>();
+
+        // Players that are still logging in are waiting on their matchmaking assignment rather than being transported
+        Set<UUID> playerIds = request.getPlayerIdsList().stream()
+                .map(UUID::fromString)
+                .filter(playerId -> {
+                    if (!this.pendingAssignments.complete(playerId, request.getServer())) return true;
+                    outcomes.put(playerId, TransportResult.Outcome.ASSIGNED);
+                    return false;
+                })
+                .collect(Collectors.toUnmodifiableSet());
+
+        if (playerIds.isEmpty()) {
+            this.respond(responseObserver, outcomes);
+            return;
+        }
+
+        PlayerTransportEvent event = new PlayerTransportEvent(playerIds, request.getServer());
+        this.server.getEventManager().fire(event);
+
+        // Respond once the transport has finished, so the caller learns how it went for each player
+        event.result().orTimeout(TRANSPORT_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS).whenComplete((result, throwable) -> {
+            if (throwable instanceof TimeoutException) {
+                responseObserver.onError(Status.DEADLINE_EXCEEDED.withDescription("Transport did not finish in time").asRuntimeException());
+            } else if (throwable != null) {
+                responseObserver.onError(Status.INTERNAL.withDescription("Transport failed").withCause(throwable).asRuntimeException());
+            } else {
+                outcomes.putAll(result.outcomes());
+                this.respond(responseObserver, outcomes);
+            }
+        });
+    }
+
+    private void respond(StreamObserver<Empty> responseObserver, Map<UUID, TransportResult.Outcome> outcomes) {
+        Metadata trailers = new Metadata();
+        trailers.put(OUTCOMES_KEY, outcomes.entrySet().stream()
+                .map(entry -> entry.getKey() + "=" + entry.getValue())
+                .collect(Collectors.joining(",")));
 
         responseObserver.onNext(Empty.getDefaultInstance());
-        responseObserver.onCompleted();
+        // An OK status closes the call normally, and is the only way to attach trailers from a StreamObserver
+        responseObserver.onError(Status.OK.asRuntimeException(trailers));
     }
 }
@@ -11,6 +11,8 @@ import dev.agones.sdk.SDKGrpc;
 import dev.agones.sdk.alpha.AlphaAgonesSDKProto;
 import dev.emortal.api.agonessdk.AgonesUtils;
 import dev.emortal.api.utils.callback.FunctionalFutureCallback;
+import dev.emortal.velocity.agones.AgonesCapacityController;
+import dev.emortal.velocity.agones.AgonesPlayerSync;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,25 +25,27 @@ public class AgonesListener {
     private final SDKGrpc.SDKFutureStub agonesService;
     private final SDKGrpc.SDKStub standardAgonesService;
     private final dev.agones.sdk.alpha.SDKGrpc.SDKFutureStub alphaAgonesService;
+    private final AgonesPlayerSync playerSync;
 
     public AgonesListener(SDKGrpc.SDKFutureStub agonesService, SDKGrpc.SDKStub standardAgonesService,
-                          dev.agones.sdk.alpha.SDKGrpc.SDKFutureStub alphaAgonesService) {
+                          dev.agones.sdk.alpha.SDKGrpc.SDKFutureStub alphaAgonesService, AgonesPlayerSync playerSync) {
 
         this.agonesService = agonesService;
         this.standardAgonesService = standardAgonesService;
         this.alphaAgonesService = alphaAgonesService;
+        this.playerSync = playerSync;
     }
 
     @Subscribe
     public void onListenerBound(ListenerBoundEvent event) {
         ListenableFuture<AlphaAgonesSDKProto.Empty> response = this.alphaAgonesService.setPlayerCapacity(
-                AlphaAgonesSDKProto.Count.newBuilder().setCount(250).build()
+                AlphaAgonesSDKProto.Count.newBuilder().setCount(AgonesCapacityController.INITIAL_CAPACITY).build()
         );
 
         Futures.addCallback(response, FunctionalFutureCallback.create(
                 result -> {
                 },
-                error -> LOGGER.error("Failed to set player capacity ({}): {}", 250, error)
+                error -> LOGGER.error("Failed to set player capacity ({}): {}", AgonesCapacityController.INITIAL_CAPACITY, error)
         ), ForkJoinPool.commonPool());
 
         ListenableFuture<AgonesSDKProto.Empty> readyResponse = this.agonesService.ready(AgonesSDKProto.Empty.getDefaultInstance());
@@ -57,29 +61,11 @@ public class AgonesListener {
 
     @Subscribe
     public void onLogin(LoginEvent event) {
-        ListenableFuture<AlphaAgonesSDKProto.Bool> response = this.alphaAgonesService.playerConnect(
-                AlphaAgonesSDKProto.PlayerID.newBuilder().setPlayerID(event.getPlayer().getUniqueId().toString()).build()
-        );
-
-        Futures.addCallback(response, FunctionalFutureCallback.create(
-                result -> {
-                    if (!result.getBool()) LOGGER.warn("Failed to register player {} with Agones (already marked as logged in)", event.getPlayer().getUniqueId());
-                },
-                error -> LOGGER.error("Failed to set player to connected: ", error)
-        ), ForkJoinPool.commonPool());
+        this.playerSync.playerConnected(event.getPlayer().getUniqueId());
     }
 
     @Subscribe
     public void onDisconnect(DisconnectEvent event) {
-        ListenableFuture<AlphaAgonesSDKProto.Bool> response = this.alphaAgonesService.playerDisconnect(
-                AlphaAgonesSDKProto.PlayerID.newBuilder().setPlayerID(event.getPlayer().getUniqueId().toString()).build()
-        );
-
-        Futures.addCallback(response, FunctionalFutureCallback.create(
-                result -> {
-                    if (!result.getBool()) LOGGER.warn("Failed to unregister player {} with Agones (not marked as logged in)", event.getPlayer().getUniqueId());
-                },
-                error -> LOGGER.error("Failed to set player to disconnected: ", error)
-        ), ForkJoinPool.commonPool());
+        this.playerSync.playerDisconnected(event.getPlayer().getUniqueId());
     }
 }
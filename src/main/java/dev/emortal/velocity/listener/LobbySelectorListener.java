@@ -3,50 +3,74 @@ package dev.emortal.velocity.listener;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.velocitypowered.api.event.Continuation;
+import com.velocitypowered.api.event.PostOrder;
 import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.connection.DisconnectEvent;
+import com.velocitypowered.api.event.connection.LoginEvent;
 import com.velocitypowered.api.event.player.PlayerChooseInitialServerEvent;
 import com.velocitypowered.api.proxy.ProxyServer;
 import com.velocitypowered.api.proxy.server.RegisteredServer;
-import com.velocitypowered.api.proxy.server.ServerInfo;
 import dev.emortal.api.kurushimi.Assignment;
 import dev.emortal.api.kurushimi.CreateTicketRequest;
 import dev.emortal.api.kurushimi.FrontendGrpc;
 import dev.emortal.api.kurushimi.SearchFields;
 import dev.emortal.api.kurushimi.Ticket;
 import dev.emortal.api.kurushimi.WatchAssignmentRequest;
-import dev.emortal.api.service.McPlayerGrpc;
-import dev.emortal.api.service.McPlayerProto;
 import dev.emortal.api.service.ServerDiscoveryGrpc;
+import dev.emortal.api.service.ServerDiscoveryProto;
 import dev.emortal.api.utils.GrpcStubCollection;
 import dev.emortal.api.utils.callback.FunctionalFutureCallback;
 import dev.emortal.api.utils.callback.FunctionalStreamObserver;
-import dev.emortal.velocity.grpc.stub.GrpcStubManager;
+import dev.emortal.velocity.CorePlugin;
+import dev.emortal.velocity.general.ServerRegistry;
+import dev.emortal.velocity.login.LoginPipeline;
+import dev.emortal.velocity.matchmaking.LobbyPool;
+import dev.emortal.velocity.matchmaking.MatchmakingTicketRegistry;
+import dev.emortal.velocity.matchmaking.PendingAssignments;
+import dev.emortal.velocity.utils.ContinuationWatchdog;
+import io.grpc.Context;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
-import io.grpc.Status;
 import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.minimessage.MiniMessage;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 public class LobbySelectorListener {
     private static final Logger LOGGER = LoggerFactory.getLogger(LobbySelectorListener.class);
 
     private static final Component ERROR_MESSAGE = MiniMessage.miniMessage().deserialize("<red>Failed to connect to lobby");
 
+    private static final Duration LOBBY_BUDGET = Duration.ofSeconds(10);
+    private static final Duration REQUEST_DEADLINE = Duration.ofSeconds(5);
+    // How long to wait for the matchmaker to push an assignment before watching the ticket ourselves
+    private static final Duration PUSH_TIMEOUT = Duration.ofSeconds(3);
+
     private final ServerDiscoveryGrpc.ServerDiscoveryFutureStub serverDiscoveryService;
-    private final McPlayerGrpc.McPlayerFutureStub mcPlayerService;
     private final FrontendGrpc.FrontendFutureStub matchmakingService;
     private final FrontendGrpc.FrontendStub matchmakingServiceBlocking;
     private final ProxyServer proxy;
+    private final ServerRegistry serverRegistry;
+    private final LoginPipeline loginPipeline;
+    private final PendingAssignments pendingAssignments;
+    private final MatchmakingTicketRegistry ticketRegistry;
+    private final LobbyPool lobbyPool;
+
+    private volatile @Nullable String lastLobbyServerId;
 
-    public LobbySelectorListener(GrpcStubManager stubManager, ProxyServer proxy) {
+    public LobbySelectorListener(CorePlugin plugin, ProxyServer proxy, ServerRegistry serverRegistry, LoginPipeline loginPipeline,
+                                 PendingAssignments pendingAssignments) {
         System.out.println("LobbySelectorListener init");
         this.serverDiscoveryService = GrpcStubCollection.getServerDiscoveryService().orElse(null);
-        this.mcPlayerService = GrpcStubCollection.getPlayerService().orElse(null);
 
         ManagedChannel channel = ManagedChannelBuilder.forAddress("matchmaker", 9090)
                 .defaultLoadBalancingPolicy("round_robin")
@@ -57,78 +81,155 @@ public class LobbySelectorListener {
         this.matchmakingServiceBlocking = FrontendGrpc.newStub(channel);
 
         this.proxy = proxy;
+        this.serverRegistry = serverRegistry;
+        this.loginPipeline = loginPipeline;
+        this.pendingAssignments = pendingAssignments;
+        this.ticketRegistry = new MatchmakingTicketRegistry(plugin, proxy, this.matchmakingService);
+        this.lobbyPool = new LobbyPool(plugin, proxy, this.serverDiscoveryService);
+    }
+
+    // LAST so that the ticket is only created for logins that the other listeners have allowed
+    @Subscribe(order = PostOrder.LAST)
+    public void onLogin(LoginEvent event) {
+        if (!event.getResult().isAllowed()) return;
+
+        UUID playerId = event.getPlayer().getUniqueId();
+        CompletableFuture<ServerDiscoveryProto.ConnectableServer> assignmentFuture = this.pendingAssignments.expect(playerId);
+
+        ServerDiscoveryProto.ConnectableServer pooledLobby = this.lobbyPool.take();
+        if (pooledLobby != null) {
+            assignmentFuture.complete(pooledLobby);
+            this.loginPipeline.mark(playerId, "lobby_pooled");
+            return;
+        }
+
+        // The ticket is created speculatively here so that matchmaking runs while the rest of the login completes
+        CompletableFuture<Ticket> ticketFuture = this.createLobbyTicket(playerId);
+        this.ticketRegistry.register(playerId, ticketFuture);
+
+        this.loginPipeline.track(playerId, "lobby_ticket", ticketFuture);
+        this.loginPipeline.track(playerId, "lobby_assignment", assignmentFuture);
     }
 
     @Subscribe
-    public void onInitialServerChoose(PlayerChooseInitialServerEvent event, Continuation continuation) {
-        ListenableFuture<McPlayerProto.PlayerResponse> playerResponseFuture = this.mcPlayerService.getPlayer(McPlayerProto.PlayerRequest.newBuilder()
-                .setPlayerId(String.valueOf(event.getPlayer().getUniqueId())).build());
-
-        System.out.println("onInitialServerChoose");
-        Futures.addCallback(playerResponseFuture, FunctionalFutureCallback.create(
-                player -> {
-                    System.out.println("onInitialServerChoose - player");
-//                    boolean otpEnabled = player.getOtpEnabled();
-//                    if (!otpEnabled)
-                        this.sendToLobbyServer(event, continuation);
-//                    else
-//                        this.sendToOtpServer(event, continuation);
-                },
-                throwable -> {
-                    Status status = Status.fromThrowable(throwable);
-                    if (status == Status.NOT_FOUND) this.sendToLobbyServer(event, continuation);
-                    else continuation.resumeWithException(throwable);
-                }
-        ), ForkJoinPool.commonPool());
+    public void onInitialServerChoose(PlayerChooseInitialServerEvent event, Continuation unguardedContinuation) {
+        UUID playerId = event.getPlayer().getUniqueId();
+        Continuation continuation = ContinuationWatchdog.watch("lobby", LOBBY_BUDGET, unguardedContinuation, () -> {
+            this.useLastKnownLobby(event);
+            // Stops waiting, which also deletes the ticket so the matchmaker doesn't assign the player twice
+            this.pendingAssignments.remove(playerId);
+        });
+
+        CompletableFuture<ServerDiscoveryProto.ConnectableServer> assignmentFuture = this.pendingAssignments.expect(playerId);
+        // Already done if the player was given a pooled lobby at login
+        if (!assignmentFuture.isDone()) this.requestAssignment(playerId, assignmentFuture);
+
+        assignmentFuture.whenComplete((server, throwable) -> {
+            this.pendingAssignments.remove(playerId);
+
+            if (throwable == null) {
+                this.ticketRegistry.complete(playerId);
+            } else {
+                this.ticketRegistry.cancel(playerId);
+            }
+
+            if (throwable instanceof CancellationException) {
+                // The player disconnected or the budget ran out while waiting
+            } else if (throwable != null) {
+                LOGGER.error("Failed to get lobby assignment", throwable);
+                if (!this.useLastKnownLobby(event)) event.getPlayer().disconnect(ERROR_MESSAGE);
+            } else {
+                this.connectPlayerToServer(event, server);
+            }
+            continuation.resume();
+        });
     }
 
-    private void sendToLobbyServer(PlayerChooseInitialServerEvent event, Continuation continuation) {
-        ListenableFuture<Ticket> listenableTicketFuture = this.matchmakingService.createTicket(CreateTicketRequest.newBuilder()
+    private void requestAssignment(UUID playerId, CompletableFuture<ServerDiscoveryProto.ConnectableServer> assignmentFuture) {
+        CompletableFuture<Ticket> ticketFuture = this.ticketRegistry.get(playerId);
+        if (ticketFuture == null) {
+            ticketFuture = this.createLobbyTicket(playerId);
+            this.ticketRegistry.register(playerId, ticketFuture);
+        }
+
+        ticketFuture.whenComplete((ticket, throwable) -> {
+            if (throwable != null) {
+                assignmentFuture.completeExceptionally(throwable);
+                return;
+            }
+
+            // The push can be lost (e.g. the matchmaker couldn't reach this proxy), so fall back to watching the ticket
+            CompletableFuture.delayedExecutor(PUSH_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS).execute(() -> {
+                if (!assignmentFuture.isDone()) this.watchAssignment(playerId, ticket.getId(), assignmentFuture);
+            });
+        });
+    }
+
+    @Subscribe
+    public void onDisconnect(DisconnectEvent event) {
+        // The ticket itself is deleted by the registry
+        this.pendingAssignments.remove(event.getPlayer().getUniqueId());
+    }
+
+    private CompletableFuture<Ticket> createLobbyTicket(UUID playerId) {
+        ListenableFuture<Ticket> listenableTicketFuture = this.matchmakingService.withDeadlineAfter(REQUEST_DEADLINE.toMillis(), TimeUnit.MILLISECONDS)
+                .createTicket(CreateTicketRequest.newBuilder()
                 .setTicket(
                         Ticket.newBuilder()
-                                .setPlayerId(event.getPlayer().getUniqueId().toString())
+                                .setPlayerId(playerId.toString())
                                 .setSearchFields(
                                         SearchFields.newBuilder()
                                                 .addTags("game.lobby")
                                 )
-                                .setNotifyProxy(false)
+                                .setNotifyProxy(true)
                 ).build());
 
+        CompletableFuture<Ticket> ticketFuture = new CompletableFuture<>();
         Futures.addCallback(listenableTicketFuture, FunctionalFutureCallback.create(
-                ticket -> {
-                    String ticketId = ticket.getId();
-                    System.out.println("a " + ticketId + " " + System.currentTimeMillis());
-
-                    // do nothing
-                    this.matchmakingServiceBlocking.watchTicketAssignment(WatchAssignmentRequest.newBuilder().setTicketId(ticketId).build(),
-                            FunctionalStreamObserver.create(
-                                    response -> {
-                                        System.out.println("b");
-                                        Assignment assignment = response.getAssignment();
-                                        System.out.println("c " + assignment);
-                                        this.connectPlayerToAssignment(event, assignment);
-                                        System.out.println("d");
-                                        continuation.resume();
-                                    },
-                                    throwable -> {
-                                        event.getPlayer().disconnect(ERROR_MESSAGE);
-                                        LOGGER.error("Failed to connect player to lobby", throwable);
-                                        continuation.resumeWithException(throwable);
-                                    },
-                                    () -> {
-                                        System.out.println("onCompleted " + System.currentTimeMillis());
-                                    }
-                            ));
-                },
-                throwable -> event.getPlayer().disconnect(ERROR_MESSAGE)
+                ticketFuture::complete,
+                ticketFuture::completeExceptionally
         ), ForkJoinPool.commonPool());
+        return ticketFuture;
     }
 
-    private void connectPlayerToAssignment(PlayerChooseInitialServerEvent event, Assignment assignment) {
-        RegisteredServer registeredServer = this.proxy.getServer(assignment.getServerId()).orElseGet(() -> {
-            InetSocketAddress address = new InetSocketAddress(assignment.getServerAddress(), assignment.getServerPort());
-            return this.proxy.registerServer(new ServerInfo(assignment.getServerId(), address));
-        });
-        event.setInitialServer(registeredServer);
+    private void watchAssignment(UUID playerId, String ticketId, CompletableFuture<ServerDiscoveryProto.ConnectableServer> assignmentFuture) {
+        // Run in a cancellable context so the registry can tear the stream down if the player leaves
+        Context.CancellableContext streamContext = Context.current().withCancellation();
+        this.ticketRegistry.attachStream(playerId, streamContext);
+
+        streamContext.run(() -> this.matchmakingServiceBlocking.watchTicketAssignment(WatchAssignmentRequest.newBuilder().setTicketId(ticketId).build(),
+                FunctionalStreamObserver.create(
+                        response -> {
+                            Assignment assignment = response.getAssignment();
+                            assignmentFuture.complete(ServerDiscoveryProto.ConnectableServer.newBuilder()
+                                    .setId(assignment.getServerId())
+                                    .setAddress(assignment.getServerAddress())
+                                    .setPort(assignment.getServerPort())
+                                    .build());
+                        },
+                        assignmentFuture::completeExceptionally,
+                        () -> {
+                        }
+                )));
+    }
+
+    /**
+     * Degraded fallback for when matchmaking is slow or unavailable: send the player to the last lobby that
+     * matchmaking assigned, if it is still registered.
+     *
+     * @return true if the initial server was set
+     */
+    private boolean useLastKnownLobby(PlayerChooseInitialServerEvent event) {
+        String serverId = this.lastLobbyServerId;
+        if (serverId == null) return false;
+
+        Optional<RegisteredServer> server = this.proxy.getServer(serverId);
+        server.ifPresent(event::setInitialServer);
+        return server.isPresent();
+    }
+
+    private void connectPlayerToServer(PlayerChooseInitialServerEvent event, ServerDiscoveryProto.ConnectableServer server) {
+        event.setInitialServer(this.serverRegistry.getOrRegister(server));
+        this.lastLobbyServerId = server.getId();
     }
 }
@@ -0,0 +1,147 @@
+package dev.emortal.velocity.listener;
+
+import dev.emortal.velocity.general.ServerManager;
+import dev.emortal.velocity.general.ServerPingCache;
+import dev.emortal.velocity.general.ServerRegistry;
+import dev.emortal.velocity.utils.ContinuationWatchdog;
+import com.velocitypowered.api.event.Continuation;
+import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.player.KickedFromServerEvent;
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.minimessage.MiniMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Moves players to a lobby when they lose their connection to a server, rather than disconnecting them.
+ * <p>
+ * When a server crashes every player on it is kicked at the same moment, so kicks from the same server are grouped
+ * over a short window. The whole group is allocated lobbies in one batch through the {@link ServerManager}, and the
+ * redirects are staggered so the lobbies don't take the whole reconnect storm at once.
+ * <p>
+ * A lost connection can be a problem with that one player's connection, so the server is only treated as dead, and
+ * unregistered, if this proxy's pings to it are failing or if no players are left on it. Several players losing their
+ * connection in the same window is only a reason to ping the server straight away rather than trust the last ping.
+ * Otherwise only the kicked players are moved.
+ * <p>
+ * Each kicked player waits on the lobby request, so the wait is capped and the player is disconnected if it runs out.
+ * <p>
+ * Only kicks without a server-provided reason are handled. In Velocity those come from an exception on the backend
+ * connection, e.g. a connection reset, a read timeout or a packet that fails to decode. A backend connection that
+ * closes cleanly but unexpectedly, which is how a killed server process usually appears, is given a reason by Velocity
+ * when failover-on-unexpected-server-disconnect is enabled, and otherwise disconnects the player without a kick event,
+ * so neither reaches this listener. Servers that die that way are caught by the {@link ServerPingCache} instead.
+ */
+public class ServerFailoverListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ServerFailoverListener.class);
+
+    private static final Component FAILOVER_MESSAGE = MiniMessage.miniMessage().deserialize("<red>The server you were on went down, so you have been moved to a lobby");
+    private static final Component LOST_CONNECTION_MESSAGE = MiniMessage.miniMessage().deserialize("<red>You lost connection to the server you were on, so you have been moved to a lobby");
+    private static final Component ERROR_MESSAGE = MiniMessage.miniMessage().deserialize("<red>The server you were on went down");
+
+    private static final Duration GROUP_WINDOW = Duration.ofMillis(250);
+    private static final Duration STAGGER = Duration.ofMillis(20);
+    // Covers the group window, a ping and a discovery request
+    private static final Duration FAILOVER_BUDGET = Duration.ofSeconds(10);
+
+    private final ServerManager serverManager;
+    private final ServerRegistry serverRegistry;
+    private final ServerPingCache pingCache;
+
+    private final Map<String, List<Kick>> pendingGroups = new HashMap<>();
+
+    public ServerFailoverListener(ServerManager serverManager, ServerRegistry serverRegistry, ServerPingCache pingCache) {
+        this.serverManager = serverManager;
+        this.serverRegistry = serverRegistry;
+        this.pingCache = pingCache;
+    }
+
+    @Subscribe
+    public void onKickedFromServer(KickedFromServerEvent event, Continuation continuation) {
+        // A kick with a reason was deliberate, and a failed connect is handled by whatever started it
+        if (event.kickedDuringServerConnect() || event.getServerKickReason().isPresent()) {
+            continuation.resume();
+            return;
+        }
+
+        Continuation guardedContinuation = ContinuationWatchdog.watch("failover", FAILOVER_BUDGET, continuation,
+                () -> event.setResult(KickedFromServerEvent.DisconnectPlayer.create(ERROR_MESSAGE)));
+
+        String serverName = event.getServer().getServerInfo().getName();
+        synchronized (this.pendingGroups) {
+            this.pendingGroups.computeIfAbsent(serverName, name -> {
+                CompletableFuture.delayedExecutor(GROUP_WINDOW.toMillis(), TimeUnit.MILLISECONDS)
+                        .execute(() -> this.failover(event.getServer()));
+                return new ArrayList<>();
+            }).add(new Kick(event, guardedContinuation));
+        }
+    }
+
+    private void failover(RegisteredServer failedServer) {
+        String serverName = failedServer.getServerInfo().getName();
+        List<Kick> kicks;
+        synchronized (this.pendingGroups) {
+            kicks = this.pendingGroups.remove(serverName);
+        }
+        if (kicks == null) return;
+
+        // The kicked players may still be listed on the server until their kicks are resolved
+        Set<Player> kickedPlayers = kicks.stream().map(kick -> kick.event().getPlayer()).collect(Collectors.toSet());
+        boolean playersLeft = failedServer.getPlayersConnected().stream().anyMatch(player -> !kickedPlayers.contains(player));
+
+        if (!playersLeft || this.pingCache.isUnreachable(serverName)) {
+            this.redirect(failedServer, kicks, true);
+        } else if (kicks.size() > 1) {
+            // Could be several players' own connections, so check the server itself
+            this.pingCache.ping(failedServer).thenAccept(reachable -> this.redirect(failedServer, kicks, !reachable));
+        } else {
+            this.redirect(failedServer, kicks, false);
+        }
+    }
+
+    private void redirect(RegisteredServer failedServer, List<Kick> kicks, boolean serverDown) {
+        String serverName = failedServer.getServerInfo().getName();
+        if (serverDown) {
+            LOGGER.warn("Lost connection to {} for {} players, moving them to lobbies", serverName, kicks.size());
+            // Stops anything else sending players to the dead server while it is still registered
+            this.serverRegistry.unregister(failedServer);
+        } else {
+            LOGGER.info("{} players lost their connection to {} but it is still up, moving them to lobbies", kicks.size(), serverName);
+        }
+        Component message = serverDown ? FAILOVER_MESSAGE : LOST_CONNECTION_MESSAGE;
+
+        for (int i = 0; i < kicks.size(); i++) {
+            Kick kick = kicks.get(i);
+            long delay = STAGGER.toMillis() * i;
+
+            // Requested together so they are routed in as few discovery requests as possible
+            this.serverManager.requestLobbyServer().whenComplete((lobby, throwable) -> {
+                if (throwable != null || lobby.getServerInfo().getName().equals(serverName)) {
+                    kick.event().setResult(KickedFromServerEvent.DisconnectPlayer.create(ERROR_MESSAGE));
+                    kick.continuation().resume();
+                    return;
+                }
+
+                CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> {
+                    kick.event().setResult(KickedFromServerEvent.RedirectPlayer.create(lobby, message));
+                    kick.continuation().resume();
+                });
+            });
+        }
+    }
+
+    private record Kick(KickedFromServerEvent event, Continuation continuation) {
+    }
+}
@@ -0,0 +1,178 @@
+package dev.emortal.velocity.login;
+
+import dev.emortal.velocity.CorePlugin;
+import dev.emortal.velocity.friends.FriendCache;
+import dev.emortal.velocity.permissions.PermissionCache;
+import dev.emortal.velocity.utils.ContinuationWatchdog;
+import dev.emortal.velocity.utils.TimingStats;
+import com.velocitypowered.api.event.PostOrder;
+import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.connection.DisconnectEvent;
+import com.velocitypowered.api.event.connection.LoginEvent;
+import com.velocitypowered.api.event.connection.PostLoginEvent;
+import com.velocitypowered.api.event.permission.PermissionsSetupEvent;
+import com.velocitypowered.api.event.player.GameProfileRequestEvent;
+import com.velocitypowered.api.event.player.PlayerChooseInitialServerEvent;
+import com.velocitypowered.api.event.player.ServerPostConnectEvent;
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.ProxyServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts every independent piece of login work as soon as the player's profile is known, instead of each listener
+ * starting its own fetch at the event where it needs the result. The listeners then join the already running work.
+ * <p>
+ * The pipeline starts at {@link GameProfileRequestEvent} rather than {@link LoginEvent}, as permissions are set up
+ * before LoginEvent fires and the profile is the earliest point the player's id is final.
+ * <p>
+ * The time each stage takes, measured from the start of the login, is recorded so we can see where time-to-lobby goes.
+ */
+public class LoginPipeline {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoginPipeline.class);
+
+    private static final Duration STATS_INTERVAL = Duration.ofMinutes(1);
+    // Logins that never reach a server (e.g. the connection dropped before the player was created) are cleaned up
+    private static final Duration ABANDONED_LOGIN_TIMEOUT = Duration.ofMinutes(2);
+
+    private final ProxyServer proxy;
+    private final PermissionCache permissionCache;
+    private final FriendCache friendCache;
+
+    private final Map<UUID, LoginSession> sessions = new ConcurrentHashMap<>();
+    private final Map<String, TimingStats> stageStats = new ConcurrentHashMap<>();
+
+    public LoginPipeline(CorePlugin plugin, ProxyServer proxy, PermissionCache permissionCache, FriendCache friendCache) {
+        this.proxy = proxy;
+        this.permissionCache = permissionCache;
+        this.friendCache = friendCache;
+
+        proxy.getScheduler().buildTask(plugin, this::logStats)
+                .repeat(STATS_INTERVAL.toMillis(), TimeUnit.MILLISECONDS)
+                .schedule();
+        proxy.getScheduler().buildTask(plugin, this::cleanupAbandonedSessions)
+                .repeat(ABANDONED_LOGIN_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)
+                .schedule();
+    }
+
+    // LAST so that any listener changing the profile has already run
+    @Subscribe(order = PostOrder.LAST)
+    public void onGameProfileRequest(GameProfileRequestEvent event) {
+        UUID playerId = event.getGameProfile().getId();
+        this.sessions.put(playerId, new LoginSession());
+
+        this.track(playerId, "roles", this.permissionCache.loadUser(playerId));
+        this.track(playerId, "friends", this.friendCache.load(playerId));
+    }
+
+    /**
+     * Records how long a piece of login work took, from the start of the login until the future completes.
+     */
+    public void track(UUID playerId, String stage, CompletableFuture<?> future) {
+        LoginSession session = this.sessions.get(playerId);
+        if (session == null) return;
+
+        future.whenComplete((result, throwable) -> session.record(throwable == null ? stage : stage + "_failed"));
+    }
+
+    /**
+     * Records that the login has reached a point, measured from the start of the login.
+     */
+    public void mark(UUID playerId, String stage) {
+        LoginSession session = this.sessions.get(playerId);
+        if (session != null) session.record(stage);
+    }
+
+    @Subscribe(order = PostOrder.LAST)
+    public void onPermissionsSetup(PermissionsSetupEvent event) {
+        if (event.getSubject() instanceof Player player) this.mark(player.getUniqueId(), "permissions_setup");
+    }
+
+    @Subscribe(order = PostOrder.LAST)
+    public void onLogin(LoginEvent event) {
+        this.mark(event.getPlayer().getUniqueId(), "login");
+    }
+
+    @Subscribe(order = PostOrder.LAST)
+    public void onPostLogin(PostLoginEvent event) {
+        this.mark(event.getPlayer().getUniqueId(), "post_login");
+    }
+
+    @Subscribe(order = PostOrder.LAST)
+    public void onInitialServerChoose(PlayerChooseInitialServerEvent event) {
+        this.mark(event.getPlayer().getUniqueId(), "initial_server_chosen");
+    }
+
+    @Subscribe
+    public void onServerPostConnect(ServerPostConnectEvent event) {
+        UUID playerId = event.getPlayer().getUniqueId();
+        LoginSession session = this.sessions.remove(playerId);
+        if (session == null) return; // not the first server the player has connected to
+
+        session.record("server_connected");
+        this.complete(playerId, session);
+    }
+
+    @Subscribe
+    public void onDisconnect(DisconnectEvent event) {
+        this.sessions.remove(event.getPlayer().getUniqueId());
+    }
+
+    private void complete(UUID playerId, LoginSession session) {
+        StringJoiner joiner = new StringJoiner(", ");
+        session.stageMillis.forEach((stage, millis) -> {
+            joiner.add(stage + "=" + millis + "ms");
+            this.stageStats.computeIfAbsent(stage, key -> new TimingStats()).record(millis);
+        });
+        LOGGER.debug("Login timings for {}: {}", playerId, joiner);
+    }
+
+    private void logStats() {
+        if (this.stageStats.isEmpty()) return;
+
+        StringJoiner joiner = new StringJoiner("\n");
+        joiner.add("Login stage timings (last %s seconds):".formatted(STATS_INTERVAL.toSeconds()));
+        this.stageStats.entrySet().stream()
+                .sorted(Map.Entry.comparingByKey())
+                .forEach(entry -> joiner.add(" - " + entry.getKey() + ": " + entry.getValue().drain()));
+        this.stageStats.clear();
+        joiner.add(" - role load: " + this.permissionCache.getRoleLoadTimings().drain());
+
+        Map<String, Long> exceededBudgets = ContinuationWatchdog.getExceededBudgets();
+        if (!exceededBudgets.isEmpty()) joiner.add(" - stages over budget since startup: " + new TreeMap<>(exceededBudgets));
+
+        LOGGER.info(joiner.toString());
+    }
+
+    private void cleanupAbandonedSessions() {
+        long cutoff = System.nanoTime() - ABANDONED_LOGIN_TIMEOUT.toNanos();
+
+        this.sessions.entrySet().removeIf(entry -> {
+            UUID playerId = entry.getKey();
+            if (entry.getValue().startNanos > cutoff || this.proxy.getPlayer(playerId).isPresent()) return false;
+
+            // The disconnect event never fired for this login, so nothing else will clear its prefetched data
+            this.permissionCache.getUserCache().remove(playerId);
+            this.friendCache.removeAll(playerId);
+            return true;
+        });
+    }
+
+    private static final class LoginSession {
+        private final long startNanos = System.nanoTime();
+        private final Map<String, Long> stageMillis = new ConcurrentHashMap<>();
+
+        private void record(String stage) {
+            this.stageMillis.putIfAbsent(stage, (System.nanoTime() - this.startNanos) / 1_000_000);
+        }
+    }
+}
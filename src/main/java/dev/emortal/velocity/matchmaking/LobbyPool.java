@@ -0,0 +1,143 @@
+package dev.emortal.velocity.matchmaking;
+
+import dev.emortal.velocity.CorePlugin;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.velocitypowered.api.proxy.ProxyServer;
+import dev.emortal.api.service.ServerDiscoveryGrpc;
+import dev.emortal.api.service.ServerDiscoveryProto;
+import dev.emortal.api.utils.callback.FunctionalFutureCallback;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A small rolling pool of lobby slots fetched from server discovery ahead of time, so that during normal traffic a
+ * joining player's lobby is a local dequeue rather than a create ticket and assignment wait.
+ * <p>
+ * The pool is sized to cover the logins expected over the next few seconds, based on a moving average of the recent
+ * login rate, and is empty when the proxy isn't seeing logins. Slots expire quickly so a lobby that has since filled
+ * up isn't handed out, and when the pool is empty the login goes through matchmaking as normal.
+ * <p>
+ * Matchmaking stays authoritative: each refill asks discovery for a lobby with room for the slots it adds, so those
+ * players are counted against that lobby, and a refill adds at most a few slots so a burst of logins is spread over
+ * the lobbies discovery suggests. The pool is only non-empty while logins are frequent enough for its slots to be
+ * used, so few counted slots expire unused.
+ */
+public class LobbyPool {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LobbyPool.class);
+
+    private static final Duration SLOT_TTL = Duration.ofSeconds(10);
+    private static final Duration REFILL_HORIZON = Duration.ofSeconds(3);
+    private static final Duration TICK_INTERVAL = Duration.ofSeconds(1);
+    private static final Duration REQUEST_DEADLINE = Duration.ofSeconds(5);
+
+    private static final int MAX_SIZE = 32;
+    // The most slots one suggestion fills, so one lobby doesn't take a whole burst
+    private static final int MAX_SLOTS_PER_REFILL = 4;
+    // Below this, logins are too rare for a slot to be used before it expires
+    private static final double MIN_LOGINS_PER_SECOND = 0.2;
+    // Weight given to the latest interval when updating the login rate
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private final @Nullable ServerDiscoveryGrpc.ServerDiscoveryFutureStub serverDiscoveryService;
+
+    private final Queue<Slot> slots = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger slotCount = new AtomicInteger();
+    private final AtomicBoolean refilling = new AtomicBoolean();
+
+    private final LongAdder recentLogins = new LongAdder();
+    private volatile double loginsPerSecond;
+
+    public LobbyPool(CorePlugin plugin, ProxyServer proxy, @Nullable ServerDiscoveryGrpc.ServerDiscoveryFutureStub serverDiscoveryService) {
+        this.serverDiscoveryService = serverDiscoveryService;
+        if (serverDiscoveryService == null) return;
+
+        proxy.getScheduler().buildTask(plugin, this::tick)
+                .repeat(TICK_INTERVAL.toMillis(), TimeUnit.MILLISECONDS)
+                .schedule();
+    }
+
+    /**
+     * Takes a lobby slot for a joining player, refilling the pool in the background.
+     *
+     * @return the lobby, or null if the pool is empty
+     */
+    public @Nullable ServerDiscoveryProto.ConnectableServer take() {
+        if (this.serverDiscoveryService == null) return null;
+        this.recentLogins.increment();
+
+        long now = System.nanoTime();
+        Slot slot;
+        while ((slot = this.slots.poll()) != null) {
+            this.slotCount.decrementAndGet();
+            if (slot.expiresAt - now > 0) break;
+        }
+
+        this.refill();
+        return slot == null ? null : slot.server;
+    }
+
+    private void tick() {
+        double intervalRate = this.recentLogins.sumThenReset() / (double) TICK_INTERVAL.toSeconds();
+        this.loginsPerSecond = RATE_SMOOTHING * intervalRate + (1 - RATE_SMOOTHING) * this.loginsPerSecond;
+
+        this.evictExpired();
+        this.refill();
+    }
+
+    private int targetSize() {
+        if (this.loginsPerSecond < MIN_LOGINS_PER_SECOND) return 0;
+
+        int expectedLogins = (int) Math.ceil(this.loginsPerSecond * REFILL_HORIZON.toSeconds());
+        return Math.min(MAX_SIZE, expectedLogins);
+    }
+
+    private void evictExpired() {
+        long now = System.nanoTime();
+        // Slots are added in expiry order, so only the head needs checking
+        Slot head;
+        while ((head = this.slots.peek()) != null && head.expiresAt - now <= 0) {
+            if (this.slots.remove(head)) this.slotCount.decrementAndGet();
+        }
+    }
+
+    private void refill() {
+        int deficit = this.targetSize() - this.slotCount.get();
+        if (deficit <= 0 || !this.refilling.compareAndSet(false, true)) return;
+
+        // Discovery counts these players against the lobby it suggests, and can spread later refills elsewhere
+        int refillSize = Math.min(deficit, MAX_SLOTS_PER_REFILL);
+        ListenableFuture<ServerDiscoveryProto.LobbyServer> lobbyServerFuture = this.serverDiscoveryService.withDeadlineAfter(REQUEST_DEADLINE.toMillis(), TimeUnit.MILLISECONDS)
+                .getSuggestedLobbyServer(ServerDiscoveryProto.ServerRequest.newBuilder().setPlayerCount(refillSize).build());
+
+        Futures.addCallback(lobbyServerFuture, FunctionalFutureCallback.create(
+                lobbyServer -> {
+                    long expiresAt = System.nanoTime() + SLOT_TTL.toNanos();
+                    for (int i = 0; i < refillSize; i++) {
+                        this.slots.add(new Slot(lobbyServer.getConnectableServer(), expiresAt));
+                    }
+                    this.slotCount.addAndGet(refillSize);
+                    this.refilling.set(false);
+                    // Continue with the rest of the deficit, if there is any
+                    this.refill();
+                },
+                throwable -> {
+                    LOGGER.debug("Failed to refill lobby pool", throwable);
+                    this.refilling.set(false);
+                }
+        ), ForkJoinPool.commonPool());
+    }
+
+    private record Slot(ServerDiscoveryProto.ConnectableServer server, long expiresAt) {
+    }
+}
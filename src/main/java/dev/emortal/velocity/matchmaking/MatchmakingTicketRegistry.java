@@ -0,0 +1,131 @@
+package dev.emortal.velocity.matchmaking;
+
+import dev.emortal.velocity.CorePlugin;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.connection.DisconnectEvent;
+import com.velocitypowered.api.proxy.ProxyServer;
+import dev.emortal.api.kurushimi.DeleteTicketRequest;
+import dev.emortal.api.kurushimi.FrontendGrpc;
+import dev.emortal.api.kurushimi.Ticket;
+import dev.emortal.api.utils.callback.FunctionalFutureCallback;
+import io.grpc.Context;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the matchmaking tickets this proxy has created that are still waiting for an assignment, so that a ticket
+ * never outlives its player. Otherwise the matchmaker keeps scoring it and may reserve a slot for someone who is gone.
+ */
+public class MatchmakingTicketRegistry {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MatchmakingTicketRegistry.class);
+
+    private static final Duration DELETE_DEADLINE = Duration.ofSeconds(5);
+    private static final Duration GAUGE_INTERVAL = Duration.ofMinutes(1);
+
+    private final FrontendGrpc.FrontendFutureStub matchmakingService;
+
+    private final Map<UUID, TrackedTicket> tickets = new ConcurrentHashMap<>();
+
+    public MatchmakingTicketRegistry(CorePlugin plugin, ProxyServer proxy, FrontendGrpc.FrontendFutureStub matchmakingService) {
+        this.matchmakingService = matchmakingService;
+
+        proxy.getEventManager().register(plugin, this);
+        proxy.getScheduler().buildTask(plugin, () -> {
+            int inFlight = this.getInFlightTickets();
+            if (inFlight > 0) LOGGER.info("{} matchmaking tickets in flight", inFlight);
+        }).repeat(GAUGE_INTERVAL.toMillis(), TimeUnit.MILLISECONDS).schedule();
+    }
+
+    public void register(UUID playerId, CompletableFuture<Ticket> ticketFuture) {
+        TrackedTicket previous = this.tickets.put(playerId, new TrackedTicket(ticketFuture));
+        if (previous != null) this.delete(previous);
+    }
+
+    /**
+     * @return the player's outstanding ticket, or null if they don't have one
+     */
+    public @Nullable CompletableFuture<Ticket> get(UUID playerId) {
+        TrackedTicket ticket = this.tickets.get(playerId);
+        return ticket == null ? null : ticket.future;
+    }
+
+    /**
+     * Attaches the context of the stream watching the player's ticket, so it is torn down with the ticket.
+     */
+    public void attachStream(UUID playerId, Context.CancellableContext streamContext) {
+        TrackedTicket ticket = this.tickets.get(playerId);
+        if (ticket == null) {
+            streamContext.cancel(null);
+            return;
+        }
+        ticket.streamContext = streamContext;
+
+        // The ticket may have been removed while the stream was being attached
+        if (this.tickets.get(playerId) != ticket) streamContext.cancel(null);
+    }
+
+    /**
+     * Stops tracking a ticket that has been assigned. The matchmaker has already consumed it, so it isn't deleted.
+     */
+    public void complete(UUID playerId) {
+        TrackedTicket ticket = this.tickets.remove(playerId);
+        if (ticket != null) ticket.closeStream();
+    }
+
+    /**
+     * Deletes the player's ticket if it hasn't been assigned yet.
+     */
+    public void cancel(UUID playerId) {
+        TrackedTicket ticket = this.tickets.remove(playerId);
+        if (ticket != null) this.delete(ticket);
+    }
+
+    @Subscribe
+    public void onDisconnect(DisconnectEvent event) {
+        this.cancel(event.getPlayer().getUniqueId());
+    }
+
+    public int getInFlightTickets() {
+        return this.tickets.size();
+    }
+
+    private void delete(TrackedTicket ticket) {
+        ticket.closeStream();
+
+        // If the ticket failed to be created there is nothing to delete
+        ticket.future.thenAccept(createdTicket -> {
+            ListenableFuture<?> deleteFuture = this.matchmakingService.withDeadlineAfter(DELETE_DEADLINE.toMillis(), TimeUnit.MILLISECONDS)
+                    .deleteTicket(DeleteTicketRequest.newBuilder().setTicketId(createdTicket.getId()).build());
+
+            Futures.addCallback(deleteFuture, FunctionalFutureCallback.create(
+                    result -> {},
+                    throwable -> LOGGER.warn("Failed to delete matchmaking ticket {}", createdTicket.getId(), throwable)
+            ), ForkJoinPool.commonPool());
+        });
+    }
+
+    private static final class TrackedTicket {
+        private final CompletableFuture<Ticket> future;
+        private volatile @Nullable Context.CancellableContext streamContext;
+
+        private TrackedTicket(CompletableFuture<Ticket> future) {
+            this.future = future;
+        }
+
+        private void closeStream() {
+            Context.CancellableContext context = this.streamContext;
+            if (context != null) context.cancel(null);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package dev.emortal.velocity.matchmaking;
+
+import dev.emortal.api.service.ServerDiscoveryProto;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Players waiting for a matchmaking assignment to choose their initial server.
+ * <p>
+ * Tickets created with notify proxy enabled have their assignment pushed to this proxy through the player transporter
+ * service rather than watched per player. The transport request only carries player ids, so waiters are keyed by
+ * player rather than by ticket.
+ */
+public class PendingAssignments {
+    private final Map<UUID, CompletableFuture<ServerDiscoveryProto.ConnectableServer>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Registers that a player is waiting for an assignment. This should be called before the ticket is created, as
+     * the assignment can be pushed as soon as the ticket exists.
+     *
+     * @return the future completed with the assigned server
+     */
+    public CompletableFuture<ServerDiscoveryProto.ConnectableServer> expect(UUID playerId) {
+        return this.pending.computeIfAbsent(playerId, id -> new CompletableFuture<>());
+    }
+
+    /**
+     * @return the assignment the player is waiting for, or null if they aren't waiting for one
+     */
+    public @Nullable CompletableFuture<ServerDiscoveryProto.ConnectableServer> get(UUID playerId) {
+        return this.pending.get(playerId);
+    }
+
+    /**
+     * @return true if the player was waiting for an assignment
+     */
+    public boolean complete(UUID playerId, ServerDiscoveryProto.ConnectableServer server) {
+        CompletableFuture<ServerDiscoveryProto.ConnectableServer> future = this.pending.get(playerId);
+        return future != null && future.complete(server);
+    }
+
+    /**
+     * Stops waiting for the player's assignment, once it has been used or the player has left. Any later push for
+     * the player is handled as a normal transport.
+     */
+    public void remove(UUID playerId) {
+        CompletableFuture<ServerDiscoveryProto.ConnectableServer> future = this.pending.remove(playerId);
+        if (future != null) future.cancel(false);
+    }
+}
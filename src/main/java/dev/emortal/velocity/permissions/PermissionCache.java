@@ -1,7 +1,7 @@
 package dev.emortal.velocity.permissions;
 
 import dev.emortal.velocity.grpc.stub.GrpcStubManager;
-import com.google.common.collect.Sets;
+import dev.emortal.velocity.utils.TimingStats;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.Empty;
@@ -16,35 +16,63 @@ import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.minimessage.MiniMessage;
 import net.kyori.adventure.text.minimessage.tag.resolver.Placeholder;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ForkJoinPool;
-import java.util.function.Consumer;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 
 public class PermissionCache {
     private static final Logger LOGGER = LoggerFactory.getLogger(PermissionCache.class);
 
-    private final Map<String, Role> roleCache = Collections.synchronizedMap(new LinkedHashMap<>());
+    private static final Set<String> DEFAULT_ROLE_IDS = Set.of(System.getenv().getOrDefault("PERMISSION_DEFAULT_ROLES", "default").split(","));
+
+    // Readers never lock - the role table is an immutable snapshot that writers replace as a whole.
+    // Writers are serialised so that users are always refreshed against the latest snapshot.
+    private final AtomicReference<Map<String, Role>> roleCache = new AtomicReference<>(Map.of());
     private final Map<UUID, User> userCache = new ConcurrentHashMap<>();
+    // The load started by each player's current login, so a load that finishes after they leave isn't cached
+    private final Map<UUID, CompletableFuture<User>> loginLoads = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
 
     private final PermissionServiceGrpc.PermissionServiceFutureStub permissionService;
     private final Set<PermissionBlocker> permissionBlockers;
+    private final RoleSnapshotStore snapshotStore = new RoleSnapshotStore();
+    private final UserRoleLoader userRoleLoader;
+
+    private volatile @Nullable PermissionChangeFeed changeFeed;
 
     public PermissionCache(GrpcStubManager stubManager, PermissionBlocker... permissionBlockers) {
         this.permissionService = GrpcStubCollection.getPermissionService().orElse(null);
         this.permissionBlockers = Set.of(permissionBlockers);
-
-        this.loadRoles();
+        this.userRoleLoader = new UserRoleLoader(this.permissionService);
+
+        // Serve from the local snapshot straight away, and bring it up to date in the background
+        Map<String, Role> snapshot = this.snapshotStore.load();
+        if (snapshot.isEmpty()) {
+            this.loadRoles();
+        } else {
+            LOGGER.info("Loaded {} roles from the local snapshot", snapshot.size());
+            this.roleCache.set(Collections.unmodifiableMap(snapshot));
+            this.reconcileRoles();
+        }
     }
 
     private void loadRoles() {
@@ -56,45 +84,130 @@ public class PermissionCache {
 
         Futures.addCallback(response, FunctionalFutureCallback.create(
                 result -> {
+                    Map<String, Role> roles = new LinkedHashMap<>();
                     for (PermissionProto.RoleResponse role : result.getRolesList()) {
-                        this.roleCache.put(
-                                role.getId(),
-                                new Role(
-                                        role.getId(), role.getPriority(),
-                                        role.getDisplayPrefix(), role.getDisplayName(),
-                                        Sets.newConcurrentHashSet(role.getPermissionsList().stream()
-                                                .map(protoNode -> new Role.PermissionNode(
-                                                                protoNode.getNode(),
-                                                                protoNode.getState() == PermissionProto.PermissionNode.PermissionState.ALLOW ? Tristate.TRUE : Tristate.FALSE
-                                                        )
-                                                ).collect(Collectors.toSet()))
-                                )
-                        );
+                        roles.put(role.getId(), Role.fromProto(role));
+                    }
+
+                    synchronized (this.writeLock) {
+                        this.roleCache.set(Collections.unmodifiableMap(roles));
+                        this.userCache.values().forEach(this::refreshUser);
+                        this.snapshotStore.saveAsync(this.roleCache.get());
                     }
                 },
                 error -> LOGGER.error("Failed to load roles", error)
         ), ForkJoinPool.commonPool());
     }
 
-    public void loadUser(UUID id, Runnable callback, Consumer<Throwable> errorCallback) {
+    /**
+     * Compares a hash of every role against the permission service and patches only the roles that differ.
+     * This backs up the change feed in case a notification was missed.
+     */
+    public void reconcileRoles() {
+        if (this.permissionService == null) return;
+        ListenableFuture<PermissionProto.RolesResponse> response = this.permissionService.getRoles(Empty.getDefaultInstance());
+
+        Futures.addCallback(response, FunctionalFutureCallback.create(
+                result -> {
+                    Map<String, Role> remoteRoles = new LinkedHashMap<>();
+                    for (PermissionProto.RoleResponse role : result.getRolesList()) {
+                        remoteRoles.put(role.getId(), Role.fromProto(role));
+                    }
+
+                    int patched = 0;
+                    synchronized (this.writeLock) {
+                        Map<String, Role> localRoles = this.roleCache.get();
+                        for (Role remoteRole : remoteRoles.values()) {
+                            Role localRole = localRoles.get(remoteRole.getId());
+                            if (localRole != null && localRole.contentHash() == remoteRole.contentHash()) continue;
+
+                            this.publishRole(remoteRole);
+                            patched++;
+                        }
+                        for (String localRoleId : localRoles.keySet()) {
+                            if (remoteRoles.containsKey(localRoleId)) continue;
+
+                            this.unpublishRole(localRoleId);
+                            patched++;
+                        }
+
+                        if (patched > 0) this.snapshotStore.saveAsync(this.roleCache.get());
+                    }
+
+                    if (patched > 0) LOGGER.info("Reconciled {} roles that were out of sync with the permission service", patched);
+                },
+                error -> LOGGER.error("Failed to reconcile roles", error)
+        ), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Reloads the roles of a user if they are cached on this proxy, for when their roles were changed elsewhere.
+     */
+    public void reloadUserRoles(UUID id) {
+        if (!this.userCache.containsKey(id) || this.permissionService == null) return;
+
         ListenableFuture<PermissionProto.PlayerRolesResponse> rolesResponseFuture = this.permissionService.getPlayerRoles(
                 PermissionProto.PlayerRequest.newBuilder().setPlayerId(id.toString()).build()
         );
 
         Futures.addCallback(rolesResponseFuture, FunctionalFutureCallback.create(
-                result -> {
-                    Set<String> roleIds = Sets.newConcurrentHashSet(result.getRoleIdsList());
-                    User user = new User(id, roleIds, this.determineActivePrefix(roleIds), this.determineActiveName(roleIds));
-                    this.userCache.put(id, user);
-                    callback.run();
-                },
-                error -> {
-                    errorCallback.accept(error);
-                    LOGGER.error("Failed to load user roles for " + id, error);
-                }
+                result -> this.updateUserRoles(id, roleIds -> Set.copyOf(result.getRoleIdsList())),
+                error -> LOGGER.error("Failed to reload user roles for " + id, error)
         ), ForkJoinPool.commonPool());
     }
 
+    /**
+     * Starts loading the roles of a user into the cache, replacing any earlier load for them. This is called at the
+     * start of every login, so a returning player is always reloaded. The result is only cached if the user hasn't
+     * disconnected or started another login since.
+     */
+    public CompletableFuture<User> loadUser(UUID id) {
+        CompletableFuture<User> future = new CompletableFuture<>();
+        synchronized (this.writeLock) {
+            this.loginLoads.put(id, future);
+            // Left behind if an earlier login never finished, and must not stand in for this login's roles
+            this.userCache.remove(id);
+        }
+
+        this.userRoleLoader.load(id).whenComplete((roleIds, throwable) -> {
+            if (throwable != null) {
+                LOGGER.error("Failed to load user roles for " + id, throwable);
+                future.completeExceptionally(throwable);
+                return;
+            }
+
+            User user = new User(id, Set.copyOf(roleIds));
+            synchronized (this.writeLock) {
+                this.refreshUser(user);
+                if (this.loginLoads.get(id) == future) this.userCache.put(id, user);
+            }
+            future.complete(user);
+        });
+        return future;
+    }
+
+    /**
+     * @return the load started for the user's current login, or a new load if there isn't one
+     */
+    public CompletableFuture<User> getLoginLoad(UUID id) {
+        CompletableFuture<User> future = this.loginLoads.get(id);
+        return future != null ? future : this.loadUser(id);
+    }
+
+    /**
+     * Gives a user the default roles if they haven't been loaded, so they can play in a degraded state while the
+     * permission service is unavailable. A later successful {@link #loadUser(UUID)} replaces them.
+     */
+    public void loadDefaultUser(UUID id) {
+        synchronized (this.writeLock) {
+            if (this.userCache.containsKey(id)) return;
+
+            User user = new User(id, DEFAULT_ROLE_IDS);
+            this.refreshUser(user);
+            this.userCache.put(id, user);
+        }
+    }
+
     public Tristate getPermission(UUID id, String permission) {
         // check permission blockers
         for (PermissionBlocker permissionBlocker : this.permissionBlockers)
@@ -106,59 +219,173 @@ public class PermissionCache {
             return Tristate.UNDEFINED;
         }
 
-        int currentPriority = 0;
-        Tristate currentState = Tristate.UNDEFINED;
-
-        for (String roleId : user.getRoleIds()) {
-            Role role = this.roleCache.get(roleId);
-            if (role == null || currentPriority > role.getPriority()) continue;
-
-            for (Role.PermissionNode node : role.getPermissions()) {
-                if (node.permission().equals(permission)) {
-                    currentPriority = role.getPriority();
-                    currentState = node.state();
-                }
-            }
-        }
-
-        return currentState;
+        return user.getPermissionState(permission);
     }
 
+    /**
+     * @return an immutable snapshot of the role table at the time of the call
+     */
     public Map<String, Role> getRoleCache() {
-        return roleCache;
+        return this.roleCache.get();
     }
 
     public Map<UUID, User> getUserCache() {
         return userCache;
     }
 
+    /**
+     * @return how long loading a user's roles takes, including time queued behind other loads
+     */
+    public TimingStats getRoleLoadTimings() {
+        return this.userRoleLoader.getLoadTimings();
+    }
+
     public Optional<Role> getRole(String id) {
-        return Optional.ofNullable(this.roleCache.get(id));
+        return Optional.ofNullable(this.roleCache.get().get(id));
     }
 
     public Optional<User> getUser(UUID id) {
         return Optional.ofNullable(this.userCache.get(id));
     }
 
+    public void setChangeFeed(@Nullable PermissionChangeFeed changeFeed) {
+        this.changeFeed = changeFeed;
+    }
+
+    /**
+     * Tells the other proxies that a role was changed by this proxy.
+     *
+     * @param roleResponse the role as returned by the permission service after the change
+     */
+    public void notifyRoleUpdated(PermissionProto.RoleResponse roleResponse) {
+        if (this.changeFeed != null) this.changeFeed.publishRoleUpdate(roleResponse);
+    }
+
+    /**
+     * Tells the other proxies that the roles of a user were changed by this proxy.
+     */
+    public void notifyUserRolesUpdated(UUID userId) {
+        if (this.changeFeed != null) this.changeFeed.publishUserRolesUpdate(userId);
+    }
+
+    public void setRolePriority(String roleId, int priority) {
+        this.updateRole(roleId, role -> role.withPriority(priority));
+    }
+
+    public void setRoleDisplayPrefix(String roleId, String displayPrefix) {
+        this.updateRole(roleId, role -> role.withDisplayPrefix(displayPrefix));
+    }
+
+    public void setRoleDisplayName(String roleId, String displayName) {
+        this.updateRole(roleId, role -> role.withDisplayName(displayName));
+    }
+
+    public void setRolePermission(String roleId, String permission, Tristate state) {
+        this.updateRole(roleId, role -> role.withPermission(permission, state));
+    }
+
+    public void unsetRolePermission(String roleId, String permission) {
+        this.updateRole(roleId, role -> role.withoutPermission(permission));
+    }
+
+    public void addUserRole(UUID userId, String roleId) {
+        this.updateUserRoles(userId, roleIds -> {
+            Set<String> newRoleIds = new HashSet<>(roleIds);
+            newRoleIds.add(roleId);
+            return newRoleIds;
+        });
+    }
+
+    public void removeUserRole(UUID userId, String roleId) {
+        this.updateUserRoles(userId, roleIds -> {
+            Set<String> newRoleIds = new HashSet<>(roleIds);
+            newRoleIds.remove(roleId);
+            return newRoleIds;
+        });
+    }
+
+    private void updateRole(String roleId, UnaryOperator<Role> updater) {
+        synchronized (this.writeLock) {
+            Role role = this.roleCache.get().get(roleId);
+            if (role == null) return;
+
+            this.publishRole(updater.apply(role));
+            this.snapshotStore.saveAsync(this.roleCache.get());
+        }
+    }
+
+    private void updateUserRoles(UUID userId, UnaryOperator<Set<String>> updater) {
+        synchronized (this.writeLock) {
+            User user = this.userCache.get(userId);
+            if (user == null) return;
+
+            user.setRoleIds(Set.copyOf(updater.apply(user.getRoleIds())));
+            this.refreshUser(user);
+        }
+    }
+
     public void addRole(PermissionProto.RoleResponse roleResponse) {
-        Role role = new Role(
-                roleResponse.getId(), roleResponse.getPriority(),
-                roleResponse.getDisplayPrefix(), roleResponse.getDisplayName(),
-                Sets.newConcurrentHashSet(roleResponse.getPermissionsList().stream()
-                        .map(protoNode -> new Role.PermissionNode(
-                                        protoNode.getNode(),
-                                        protoNode.getState() == PermissionProto.PermissionNode.PermissionState.ALLOW ? Tristate.TRUE : Tristate.FALSE
-                                )
-                        ).collect(Collectors.toSet()))
-        );
+        synchronized (this.writeLock) {
+            this.publishRole(Role.fromProto(roleResponse));
+            this.snapshotStore.saveAsync(this.roleCache.get());
+        }
+    }
+
+    // Must be called while holding the write lock
+    private void publishRole(Role role) {
+        Map<String, Role> roles = new LinkedHashMap<>(this.roleCache.get());
+        roles.put(role.getId(), role);
+        this.roleCache.set(Collections.unmodifiableMap(roles));
+
+        for (User user : this.userCache.values()) {
+            if (user.getRoleIds().contains(role.getId())) this.refreshUser(user);
+        }
+    }
 
-        this.roleCache.put(roleResponse.getId(), role);
+    // Must be called while holding the write lock
+    private void unpublishRole(String roleId) {
+        Map<String, Role> roles = new LinkedHashMap<>(this.roleCache.get());
+        roles.remove(roleId);
+        this.roleCache.set(Collections.unmodifiableMap(roles));
+
+        for (User user : this.userCache.values()) {
+            if (user.getRoleIds().contains(roleId)) this.refreshUser(user);
+        }
+    }
+
+    private void refreshUser(User user) {
+        Set<String> roleIds = user.getRoleIds();
+        user.setPermissions(this.computeEffectivePermissions(roleIds));
+        user.setDisplayPrefix(this.determineActivePrefix(roleIds));
+        user.setDisplayName(this.determineActiveName(roleIds));
+    }
+
+    /**
+     * Resolves every node granted by the given roles into a single trie, where the highest priority role wins.
+     */
+    private PermissionTrie computeEffectivePermissions(Collection<String> roleIds) {
+        Map<String, Role> roleCache = this.roleCache.get();
+
+        List<Role> roles = new ArrayList<>();
+        for (String roleId : roleIds) {
+            Role role = roleCache.get(roleId);
+            if (role != null) roles.add(role);
+        }
+        roles.sort(Comparator.naturalOrder());
+
+        PermissionTrie permissions = new PermissionTrie();
+        for (Role role : roles) {
+            for (Role.PermissionNode node : role.getPermissions()) {
+                permissions.put(node.permission(), node.state(), role.getPriority());
+            }
+        }
+        return permissions;
     }
 
     public Component determineActivePrefix(Collection<String> roleIds) {
         int currentPriority = 0;
         Component currentPrefix = null;
-        for (Role role : this.roleCache.values()) {
+        for (Role role : this.roleCache.get().values()) {
             if (role.getDisplayPrefix() != null && roleIds.contains(role.getId())) {
                 if (role.getPriority() > currentPriority) {
                     currentPriority = role.getPriority();
@@ -173,7 +400,7 @@ public class PermissionCache {
         int currentPriority = 0;
         String currentActiveName = null;
 
-        for (Role role : this.roleCache.values()) {
+        for (Role role : this.roleCache.get().values()) {
             if (role.getDisplayName() != null && roleIds.contains(role.getId())) {
                 if (role.getPriority() > currentPriority) {
                     currentPriority = role.getPriority();
@@ -186,36 +413,55 @@ public class PermissionCache {
 
     @Subscribe
     public void onDisconnect(DisconnectEvent event) {
-        this.userCache.remove(event.getPlayer().getUniqueId());
+        UUID id = event.getPlayer().getUniqueId();
+        // Under the write lock, so a load completing at the same time can't cache the user afterwards
+        synchronized (this.writeLock) {
+            this.loginLoads.remove(id);
+            this.userCache.remove(id);
+        }
     }
 
     public static final class User {
         private final UUID id;
-        private final Set<String> roleIds;
 
-        private Component displayPrefix;
-        private String displayName;
+        private volatile Set<String> roleIds;
+        private volatile PermissionTrie permissions = new PermissionTrie();
+        private volatile Component displayPrefix;
+        private volatile String displayName;
 
-        public User(UUID id, Set<String> roleIds, Component displayPrefix, String displayName) {
+        public User(UUID id, Set<String> roleIds) {
             this.id = id;
             this.roleIds = roleIds;
-            this.displayPrefix = displayPrefix;
-            this.displayName = displayName;
         }
 
         public UUID getId() {
             return this.id;
         }
 
+        /**
+         * @return an immutable view of the roles the user had at the time of the call
+         */
         public Set<String> getRoleIds() {
             return this.roleIds;
         }
 
+        private void setRoleIds(Set<String> roleIds) {
+            this.roleIds = roleIds;
+        }
+
+        public Tristate getPermissionState(String permission) {
+            return this.permissions.get(permission);
+        }
+
+        private void setPermissions(PermissionTrie permissions) {
+            this.permissions = permissions;
+        }
+
         public Component getDisplayPrefix() {
             return this.displayPrefix;
         }
 
-        public void setDisplayPrefix(Component displayPrefix) {
+        private void setDisplayPrefix(Component displayPrefix) {
             this.displayPrefix = displayPrefix;
         }
 
@@ -223,25 +469,48 @@ public class PermissionCache {
             return this.displayName;
         }
 
-        public void setDisplayName(String displayName) {
+        private void setDisplayName(String displayName) {
             this.displayName = displayName;
         }
     }
 
+    /**
+     * An immutable role. Changes are made by creating a modified copy and publishing it to the cache.
+     */
     public static final class Role implements Comparable<Role> {
         private final String id;
+        private final int priority;
+        private final String rawDisplayPrefix;
+        private final Component displayPrefix;
+        private final String displayName;
         private final Set<PermissionNode> permissions;
-
-        private int priority;
-        private Component displayPrefix;
-        private String displayName;
+        private final PermissionTrie permissionTrie;
 
         public Role(String id, int priority, String displayPrefix, String displayName, Set<PermissionNode> permissions) {
             this.id = id;
             this.priority = priority;
+            this.rawDisplayPrefix = displayPrefix;
             this.displayPrefix = MiniMessage.miniMessage().deserialize(displayPrefix);
             this.displayName = displayName;
-            this.permissions = permissions;
+            this.permissions = Set.copyOf(permissions);
+
+            this.permissionTrie = new PermissionTrie();
+            for (PermissionNode node : this.permissions) {
+                this.permissionTrie.put(node.permission(), node.state(), 0);
+            }
+        }
+
+        private static Role fromProto(PermissionProto.RoleResponse roleResponse) {
+            return new Role(
+                    roleResponse.getId(), roleResponse.getPriority(),
+                    roleResponse.getDisplayPrefix(), roleResponse.getDisplayName(),
+                    roleResponse.getPermissionsList().stream()
+                            .map(protoNode -> new PermissionNode(
+                                            protoNode.getNode(),
+                                            protoNode.getState() == PermissionProto.PermissionNode.PermissionState.ALLOW ? Tristate.TRUE : Tristate.FALSE
+                                    )
+                            ).collect(Collectors.toSet())
+            );
         }
 
         @Override
@@ -257,7 +526,17 @@ public class PermissionCache {
             return this.permissions;
         }
 
-        public Tristate getPermissionState(String node) {
+        /**
+         * Resolves the state of a permission for this role, including any wildcard nodes that match it.
+         */
+        public Tristate getPermissionState(String permission) {
+            return this.permissionTrie.get(permission);
+        }
+
+        /**
+         * Gets the state of the node set on this role with exactly this name, ignoring wildcards.
+         */
+        public Tristate getExplicitPermissionState(String node) {
             for (PermissionNode permissionNode : this.permissions) {
                 if (permissionNode.permission().equals(node)) {
                     return permissionNode.state();
@@ -270,30 +549,54 @@ public class PermissionCache {
             return this.priority;
         }
 
-        public void setPriority(int priority) {
-            this.priority = priority;
-        }
-
         public Component getDisplayPrefix() {
             return this.displayPrefix;
         }
 
-        public void setDisplayPrefix(String displayPrefix) {
-            this.displayPrefix = MiniMessage.miniMessage().deserialize(displayPrefix);
+        public String getRawDisplayPrefix() {
+            return this.rawDisplayPrefix;
         }
 
         public String getDisplayName() {
             return this.displayName;
         }
 
-        public void setDisplayName(String displayName) {
-            this.displayName = displayName;
-        }
-
         public Component getFormattedDisplayName(String username) {
             return MiniMessage.miniMessage().deserialize(this.displayName, Placeholder.unparsed("username", username));
         }
 
+        /**
+         * A hash of everything the permission service stores for this role, used to detect out of sync roles.
+         */
+        public int contentHash() {
+            return Objects.hash(this.id, this.priority, this.rawDisplayPrefix, this.displayName, this.permissions);
+        }
+
+        private Role withPriority(int priority) {
+            return new Role(this.id, priority, this.rawDisplayPrefix, this.displayName, this.permissions);
+        }
+
+        private Role withDisplayPrefix(String displayPrefix) {
+            return new Role(this.id, this.priority, displayPrefix, this.displayName, this.permissions);
+        }
+
+        private Role withDisplayName(String displayName) {
+            return new Role(this.id, this.priority, this.rawDisplayPrefix, displayName, this.permissions);
+        }
+
+        private Role withPermission(String permission, Tristate state) {
+            Set<PermissionNode> permissions = new HashSet<>(this.permissions);
+            permissions.removeIf(node -> node.permission().equals(permission));
+            permissions.add(new PermissionNode(permission, state));
+            return new Role(this.id, this.priority, this.rawDisplayPrefix, this.displayName, permissions);
+        }
+
+        private Role withoutPermission(String permission) {
+            Set<PermissionNode> permissions = new HashSet<>(this.permissions);
+            permissions.removeIf(node -> node.permission().equals(permission));
+            return new Role(this.id, this.priority, this.rawDisplayPrefix, this.displayName, permissions);
+        }
+
         public record PermissionNode(String permission, Tristate state) {
         }
     }
@@ -0,0 +1,108 @@
+package dev.emortal.velocity.permissions;
+
+import dev.emortal.velocity.CorePlugin;
+import dev.emortal.velocity.Environment;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Delivery;
+import com.velocitypowered.api.proxy.ProxyServer;
+import dev.emortal.api.service.PermissionProto;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the permission cache of every proxy in sync by broadcasting role and user-role changes over RabbitMQ.
+ * Each notification patches a single role or user, and a periodic hash-based reconciliation catches anything missed.
+ */
+public class PermissionChangeFeed {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PermissionChangeFeed.class);
+
+    private static final String PERMISSIONS_EXCHANGE = "mc:permissions";
+    private static final String ROLE_UPDATE_TYPE = "role_update";
+    private static final String USER_ROLES_UPDATE_TYPE = "user_roles_update";
+
+    private static final long RECONCILE_INTERVAL_MINUTES = 5;
+
+    private final PermissionCache permissionCache;
+    private final Channel channel;
+
+    public PermissionChangeFeed(CorePlugin plugin, ProxyServer proxy, Connection connection, PermissionCache permissionCache) {
+        this.permissionCache = permissionCache;
+
+        try {
+            this.channel = connection.createChannel();
+            this.channel.exchangeDeclare(PERMISSIONS_EXCHANGE, BuiltinExchangeType.FANOUT, true);
+
+            String queueName = this.channel.queueDeclare().getQueue();
+            this.channel.queueBind(queueName, PERMISSIONS_EXCHANGE, "");
+            this.channel.basicConsume(queueName, true, (consumerTag, delivery) -> this.handleDelivery(delivery), consumerTag -> {
+            });
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        proxy.getScheduler().buildTask(plugin, this.permissionCache::reconcileRoles)
+                .delay(RECONCILE_INTERVAL_MINUTES, TimeUnit.MINUTES)
+                .repeat(RECONCILE_INTERVAL_MINUTES, TimeUnit.MINUTES)
+                .schedule();
+    }
+
+    public void publishRoleUpdate(PermissionProto.RoleResponse roleResponse) {
+        this.publish(ROLE_UPDATE_TYPE, roleResponse.toByteArray());
+    }
+
+    public void publishUserRolesUpdate(UUID userId) {
+        this.publish(USER_ROLES_UPDATE_TYPE, userId.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void publish(String type, byte[] body) {
+        AMQP.BasicProperties basicProperties = new AMQP.BasicProperties.Builder()
+                .timestamp(new Date())
+                .type(type)
+                .appId(Environment.getHostname())
+                .build();
+
+        // Channels are not thread safe, and changes can be published from any command thread
+        synchronized (this.channel) {
+            try {
+                this.channel.basicPublish(PERMISSIONS_EXCHANGE, "", basicProperties, body);
+            } catch (IOException e) {
+                LOGGER.error("Failed to publish permission change ({})", type, e);
+            }
+        }
+    }
+
+    private void handleDelivery(Delivery delivery) {
+        AMQP.BasicProperties properties = delivery.getProperties();
+        // This proxy has already applied its own changes
+        if (Objects.equals(properties.getAppId(), Environment.getHostname())) return;
+
+        String type = properties.getType();
+        if (type == null) return;
+
+        switch (type) {
+            case ROLE_UPDATE_TYPE -> {
+                try {
+                    this.permissionCache.addRole(PermissionProto.RoleResponse.parseFrom(delivery.getBody()));
+                } catch (InvalidProtocolBufferException e) {
+                    LOGGER.error("Received invalid role update", e);
+                }
+            }
+            case USER_ROLES_UPDATE_TYPE -> {
+                String userId = new String(delivery.getBody(), StandardCharsets.UTF_8);
+                this.permissionCache.reloadUserRoles(UUID.fromString(userId));
+            }
+            default -> LOGGER.warn("Received unknown permission change type {}", type);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package dev.emortal.velocity.permissions;
+
+import com.velocitypowered.api.permission.Tristate;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Permission nodes split into '.' separated segments, where a trailing '*' grants every node below its parent.
+ * <p>
+ * A lookup walks a single path from the root, so its cost depends on the depth of the node rather than the number
+ * of nodes stored. Between two matches the higher priority wins, and between matches of equal priority the more
+ * specific (deeper) one wins.
+ * <p>
+ * Tries are built once and then only read, so they can be shared between threads once published.
+ */
+public final class PermissionTrie {
+    private static final String WILDCARD = "*";
+
+    private final Node root = new Node();
+
+    public void put(String permission, Tristate state, int priority) {
+        Entry entry = new Entry(state, priority);
+        if (permission.equals(WILDCARD)) {
+            this.root.wildcard = Entry.prefer(this.root.wildcard, entry);
+            return;
+        }
+
+        Node node = this.root;
+        int start = 0;
+        while (true) {
+            int end = permission.indexOf('.', start);
+            String segment = end == -1 ? permission.substring(start) : permission.substring(start, end);
+
+            if (end != -1 && permission.startsWith(WILDCARD, end + 1) && end + 1 + WILDCARD.length() == permission.length()) {
+                Node child = node.getOrCreateChild(segment);
+                child.wildcard = Entry.prefer(child.wildcard, entry);
+                return;
+            }
+
+            node = node.getOrCreateChild(segment);
+            if (end == -1) {
+                node.exact = Entry.prefer(node.exact, entry);
+                return;
+            }
+            start = end + 1;
+        }
+    }
+
+    public Tristate get(String permission) {
+        Entry best = this.root.wildcard;
+
+        Node node = this.root;
+        int start = 0;
+        while (true) {
+            int end = permission.indexOf('.', start);
+            String segment = end == -1 ? permission.substring(start) : permission.substring(start, end);
+
+            node = node.getChild(segment);
+            if (node == null) break;
+
+            if (end == -1) {
+                best = Entry.prefer(best, node.exact);
+                break;
+            }
+            best = Entry.prefer(best, node.wildcard);
+            start = end + 1;
+        }
+
+        return best == null ? Tristate.UNDEFINED : best.state();
+    }
+
+    private static final class Node {
+        private @Nullable Map<String, Node> children;
+        private @Nullable Entry exact;
+        private @Nullable Entry wildcard;
+
+        private @Nullable Node getChild(String segment) {
+            return this.children == null ? null : this.children.get(segment);
+        }
+
+        private Node getOrCreateChild(String segment) {
+            if (this.children == null) this.children = new HashMap<>();
+            return this.children.computeIfAbsent(segment, key -> new Node());
+        }
+    }
+
+    private record Entry(Tristate state, int priority) {
+
+        // On ties the candidate wins - it is either inserted later or is deeper in the walk
+        private static @Nullable Entry prefer(@Nullable Entry current, @Nullable Entry candidate) {
+            if (candidate == null) return current;
+            if (current == null || candidate.priority >= current.priority) return candidate;
+            return current;
+        }
+    }
+}
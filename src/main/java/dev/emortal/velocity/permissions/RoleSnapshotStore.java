@@ -0,0 +1,139 @@
+package dev.emortal.velocity.permissions;
+
+import com.velocitypowered.api.permission.Tristate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps a compact binary copy of the role table on local disk, so a proxy can serve permissions as soon as it starts
+ * rather than waiting for the permission service.
+ * <p>
+ * Format (big endian): magic, version, role count, then for each role its id, priority, display prefix, display name
+ * and nodes. Strings are a length followed by UTF-8 bytes, and node states are a single byte.
+ */
+public class RoleSnapshotStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RoleSnapshotStore.class);
+
+    private static final Path PATH = Path.of(System.getenv().getOrDefault("PERMISSION_SNAPSHOT_PATH", "roles.snapshot"));
+
+    private static final int MAGIC = 0x524F4C45; // ROLE
+    private static final int VERSION = 1;
+
+    private static final byte STATE_FALSE = 0;
+    private static final byte STATE_TRUE = 1;
+
+    // A single writer thread keeps writes in the order they were requested
+    private final ExecutorService writeExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "role-snapshot-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @return the roles in the snapshot, or an empty map if there is no readable snapshot
+     */
+    public Map<String, PermissionCache.Role> load() {
+        if (!Files.isRegularFile(PATH)) return Map.of();
+
+        try (FileChannel fileChannel = FileChannel.open(PATH, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+            return this.read(buffer);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Failed to read role snapshot from {}, ignoring it", PATH, e);
+            return Map.of();
+        }
+    }
+
+    public void saveAsync(Map<String, PermissionCache.Role> roles) {
+        this.writeExecutor.execute(() -> {
+            try {
+                this.write(roles);
+            } catch (IOException e) {
+                LOGGER.warn("Failed to write role snapshot to {}", PATH, e);
+            }
+        });
+    }
+
+    private Map<String, PermissionCache.Role> read(ByteBuffer buffer) {
+        if (buffer.getInt() != MAGIC) throw new IllegalArgumentException("Not a role snapshot");
+
+        int version = buffer.getInt();
+        if (version != VERSION) throw new IllegalArgumentException("Unsupported role snapshot version " + version);
+
+        int roleCount = buffer.getInt();
+        Map<String, PermissionCache.Role> roles = new LinkedHashMap<>();
+        for (int i = 0; i < roleCount; i++) {
+            String id = readString(buffer);
+            int priority = buffer.getInt();
+            String displayPrefix = readString(buffer);
+            String displayName = readString(buffer);
+
+            int nodeCount = buffer.getInt();
+            Set<PermissionCache.Role.PermissionNode> nodes = new HashSet<>();
+            for (int j = 0; j < nodeCount; j++) {
+                String node = readString(buffer);
+                Tristate state = buffer.get() == STATE_TRUE ? Tristate.TRUE : Tristate.FALSE;
+                nodes.add(new PermissionCache.Role.PermissionNode(node, state));
+            }
+
+            roles.put(id, new PermissionCache.Role(id, priority, displayPrefix, displayName, nodes));
+        }
+        return roles;
+    }
+
+    private void write(Map<String, PermissionCache.Role> roles) throws IOException {
+        Path tempPath = PATH.resolveSibling(PATH.getFileName() + ".tmp");
+
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(roles.size());
+
+            for (PermissionCache.Role role : roles.values()) {
+                writeString(output, role.getId());
+                output.writeInt(role.getPriority());
+                writeString(output, role.getRawDisplayPrefix());
+                writeString(output, role.getDisplayName());
+
+                output.writeInt(role.getPermissions().size());
+                for (PermissionCache.Role.PermissionNode node : role.getPermissions()) {
+                    writeString(output, node.permission());
+                    output.writeByte(node.state() == Tristate.TRUE ? STATE_TRUE : STATE_FALSE);
+                }
+            }
+        }
+
+        // Readers must never see a partially written snapshot
+        Files.move(tempPath, PATH, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+}
@@ -0,0 +1,100 @@
+package dev.emortal.velocity.permissions;
+
+import dev.emortal.velocity.utils.TimingStats;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import dev.emortal.api.service.PermissionProto;
+import dev.emortal.api.service.PermissionServiceGrpc;
+import dev.emortal.api.utils.callback.FunctionalFutureCallback;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the role ids of players, with a cap on how many requests are in flight at once so that a restart wave
+ * queues here rather than flooding the permission service. Concurrent loads of the same player share a single
+ * request.
+ * <p>
+ * The permission service has no batch lookup, so requests are sent as soon as a permit is free rather than being
+ * held back to form batches.
+ */
+final class UserRoleLoader {
+    private static final int MAX_IN_FLIGHT = 32;
+    private static final Duration REQUEST_DEADLINE = Duration.ofSeconds(3);
+
+    private final PermissionServiceGrpc.PermissionServiceFutureStub permissionService;
+
+    private final Map<UUID, CompletableFuture<List<String>>> pendingLoads = new ConcurrentHashMap<>();
+
+    private final Queue<UUID> queuedRequests = new ConcurrentLinkedQueue<>();
+    private final Semaphore inFlightPermits = new Semaphore(MAX_IN_FLIGHT);
+
+    // From the load being requested to it completing, so time spent queued for a permit is included
+    private final TimingStats loadTimings = new TimingStats();
+
+    UserRoleLoader(PermissionServiceGrpc.PermissionServiceFutureStub permissionService) {
+        this.permissionService = permissionService;
+    }
+
+    CompletableFuture<List<String>> load(UUID playerId) {
+        CompletableFuture<List<String>> future = new CompletableFuture<>();
+        CompletableFuture<List<String>> existing = this.pendingLoads.putIfAbsent(playerId, future);
+        if (existing != null) return existing;
+
+        long startTime = System.nanoTime();
+        future.whenComplete((roleIds, throwable) -> {
+            this.pendingLoads.remove(playerId, future);
+            this.loadTimings.recordSince(startTime);
+        });
+
+        this.queuedRequests.add(playerId);
+        this.drainQueue();
+        return future;
+    }
+
+    TimingStats getLoadTimings() {
+        return this.loadTimings;
+    }
+
+    private void drainQueue() {
+        while (!this.queuedRequests.isEmpty() && this.inFlightPermits.tryAcquire()) {
+            UUID playerId = this.queuedRequests.poll();
+            if (playerId == null) {
+                this.inFlightPermits.release();
+                return;
+            }
+
+            this.sendRequest(playerId);
+        }
+    }
+
+    private void sendRequest(UUID playerId) {
+        CompletableFuture<List<String>> future = this.pendingLoads.get(playerId);
+
+        ListenableFuture<PermissionProto.PlayerRolesResponse> rolesResponseFuture = this.permissionService.withDeadlineAfter(REQUEST_DEADLINE.toMillis(), TimeUnit.MILLISECONDS).getPlayerRoles(
+                PermissionProto.PlayerRequest.newBuilder().setPlayerId(playerId.toString()).build()
+        );
+
+        Futures.addCallback(rolesResponseFuture, FunctionalFutureCallback.create(
+                result -> {
+                    this.inFlightPermits.release();
+                    if (future != null) future.complete(result.getRoleIdsList());
+                    this.drainQueue();
+                },
+                error -> {
+                    this.inFlightPermits.release();
+                    if (future != null) future.completeExceptionally(error);
+                    this.drainQueue();
+                }
+        ), ForkJoinPool.commonPool());
+    }
+}
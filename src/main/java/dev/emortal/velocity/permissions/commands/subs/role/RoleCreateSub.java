@@ -49,6 +49,7 @@ public class RoleCreateSub {
         Futures.addCallback(roleResponseFuture, FunctionalFutureCallback.create(
                 response -> {
                     this.permissionCache.addRole(response);
+                    this.permissionCache.notifyRoleUpdated(response);
                     source.sendMessage(MINI_MESSAGE.deserialize(ROLE_CREATED, Placeholder.unparsed("role_id", roleId)));
                 },
                 throwable -> {
@@ -45,7 +45,7 @@ public class RolePermissionAddSub {
         if (optionalRole.isEmpty()) return 1;
 
         PermissionCache.Role role = optionalRole.get();
-        Tristate oldState = role.getPermissionState(permission);
+        Tristate oldState = role.getExplicitPermissionState(permission);
         if (oldState == tristateValue) {
             source.sendMessage(MINI_MESSAGE.deserialize(PERMISSION_ALREADY_EXISTS,
                     Placeholder.unparsed("role_id", roleId),
@@ -68,7 +68,8 @@ public class RolePermissionAddSub {
 
         Futures.addCallback(roleResponseFuture, FunctionalFutureCallback.create(
                 response -> {
-                    optionalRole.get().getPermissions().add(new PermissionCache.Role.PermissionNode(permission, Tristate.TRUE));
+                    this.permissionCache.setRolePermission(roleId, permission, tristateValue);
+                    this.permissionCache.notifyRoleUpdated(response);
                     source.sendMessage(MINI_MESSAGE.deserialize(PERMISSION_ADDED,
                             Placeholder.unparsed("role_id", roleId),
                             Placeholder.unparsed("permission", permission),
@@ -43,7 +43,7 @@ public class RolePermissionUnsetSub {
         if (optionalRole.isEmpty()) return 1;
 
         PermissionCache.Role role = optionalRole.get();
-        if (role.getPermissionState(permission) == Tristate.UNDEFINED) {
+        if (role.getExplicitPermissionState(permission) == Tristate.UNDEFINED) {
             source.sendMessage(MINI_MESSAGE.deserialize(PERMISSION_NOT_FOUND, Placeholder.unparsed("role_id", roleId), Placeholder.unparsed("permission", permission)));
             return 1;
         }
@@ -55,7 +55,8 @@ public class RolePermissionUnsetSub {
 
         Futures.addCallback(roleResponseFuture, FunctionalFutureCallback.create(
                 response -> {
-                    optionalRole.get().getPermissions().removeIf(node -> node.permission().equals(permission));
+                    this.permissionCache.unsetRolePermission(roleId, permission);
+                    this.permissionCache.notifyRoleUpdated(response);
                     source.sendMessage(MINI_MESSAGE.deserialize(PERMISSION_UNSET,
                             Placeholder.unparsed("role_id", roleId),
                             Placeholder.unparsed("permission", permission))
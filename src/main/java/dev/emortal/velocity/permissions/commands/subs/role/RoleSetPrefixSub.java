@@ -47,7 +47,8 @@ public class RoleSetPrefixSub {
 
         Futures.addCallback(roleResponseFuture, FunctionalFutureCallback.create(
                 response -> {
-                    optionalRole.get().setDisplayPrefix(prefix);
+                    this.permissionCache.setRoleDisplayPrefix(roleId, prefix);
+                    this.permissionCache.notifyRoleUpdated(response);
                     source.sendMessage(MINI_MESSAGE.deserialize(ROLE_PREFIX_SET, Placeholder.unparsed("role_id", roleId), Placeholder.parsed("prefix", prefix)));
                 },
                 throwable -> {
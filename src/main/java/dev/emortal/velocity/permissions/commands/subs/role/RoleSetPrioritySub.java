@@ -46,7 +46,8 @@ public class RoleSetPrioritySub {
 
         Futures.addCallback(roleResponseFuture, FunctionalFutureCallback.create(
                 response -> {
-                    optionalRole.get().setPriority(priority);
+                    this.permissionCache.setRolePriority(roleId, priority);
+                    this.permissionCache.notifyRoleUpdated(response);
                     source.sendMessage(MINI_MESSAGE.deserialize(ROLE_PRIORITY_SET,
                             Placeholder.unparsed("role_id", roleId),
                             Placeholder.unparsed("priority", String.valueOf(priority)))
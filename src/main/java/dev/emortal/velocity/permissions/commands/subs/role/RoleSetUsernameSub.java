@@ -48,8 +48,9 @@ public class RoleSetUsernameSub {
 
         Futures.addCallback(roleResponseFuture, FunctionalFutureCallback.create(
                 response -> {
+                    this.permissionCache.setRoleDisplayName(roleId, usernameFormat);
+                    this.permissionCache.notifyRoleUpdated(response);
                     PermissionCache.Role role = this.permissionCache.getRole(roleId).orElseThrow();
-                    role.setDisplayName(usernameFormat);
 
                     Component formattedUsername = role.getFormattedDisplayName(source instanceof Player player ? player.getUsername() : "CONSOLE");
 
@@ -63,7 +63,8 @@ public class UserRoleAddSub {
                                 Placeholder.unparsed("username", correctUsername))
                         );
 
-                        this.permissionCache.getUser(targetId).ifPresent(user -> user.getRoleIds().add(role.getId()));
+                        this.permissionCache.addUserRole(targetId, role.getId());
+                        this.permissionCache.notifyUserRolesUpdated(targetId);
                     },
                     throwable -> {
                         Status status = Status.fromThrowable(throwable);
@@ -63,7 +63,8 @@ public class UserRoleRemoveSub {
                                 Placeholder.unparsed("username", correctUsername))
                         );
 
-                        this.permissionCache.getUser(targetId).ifPresent(user -> user.getRoleIds().removeIf(loopRoleId -> loopRoleId.equals(roleId)));
+                        this.permissionCache.removeUserRole(targetId, roleId);
+                        this.permissionCache.notifyUserRolesUpdated(targetId);
                     },
                     throwable -> {
                         Status status = Status.fromThrowable(throwable);
@@ -1,6 +1,7 @@
 package dev.emortal.velocity.permissions.listener;
 
 import dev.emortal.velocity.permissions.PermissionCache;
+import dev.emortal.velocity.utils.ContinuationWatchdog;
 import com.velocitypowered.api.event.Continuation;
 import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.event.permission.PermissionsSetupEvent;
@@ -10,7 +11,12 @@ import com.velocitypowered.api.permission.PermissionSubject;
 import com.velocitypowered.api.permission.Tristate;
 import com.velocitypowered.api.proxy.Player;
 
+import java.time.Duration;
+import java.util.UUID;
+
 public class PermissionCheckListener {
+    private static final Duration LOAD_BUDGET = Duration.ofSeconds(2);
+
     private final PermissionCache permissionCache;
 
     public PermissionCheckListener(PermissionCache permissionCache) {
@@ -24,7 +30,16 @@ public class PermissionCheckListener {
             return;
         }
 
-        this.permissionCache.loadUser(player.getUniqueId(), continuation::resume, continuation::resumeWithException);
+        UUID playerId = player.getUniqueId();
+        Continuation guardedContinuation = ContinuationWatchdog.watch("permissions", LOAD_BUDGET, continuation,
+                () -> this.permissionCache.loadDefaultUser(playerId));
+
+        // Joins the load the login pipeline started when the profile was known
+        this.permissionCache.getLoginLoad(playerId).whenComplete((user, throwable) -> {
+            // Let the player in with the default roles rather than refusing the login
+            if (throwable != null) this.permissionCache.loadDefaultUser(playerId);
+            guardedContinuation.resume();
+        });
         event.setProvider(new PlayerPermissionProvider(this.permissionCache));
     }
 
@@ -0,0 +1,75 @@
+package dev.emortal.velocity.rabbitmq;
+
+import dev.emortal.velocity.rabbitmq.types.ConnectEventDataPackage;
+import dev.emortal.velocity.rabbitmq.types.ConnectionEventProto;
+import dev.emortal.velocity.rabbitmq.types.DisconnectEventDataPackage;
+import com.google.gson.Gson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * How connection event bodies are encoded. Consumers tell the encodings apart by the message's content type.
+ * <p>
+ * The protobuf encoding uses the messages generated from connection_events.proto.
+ */
+public enum ConnectionEventEncoding {
+    JSON("application/json") {
+        @Override
+        public byte[] encode(Object dataPackage) {
+            return GSON.toJson(dataPackage).getBytes(StandardCharsets.UTF_8);
+        }
+    },
+    PROTOBUF("application/x-protobuf") {
+        @Override
+        public byte[] encode(Object dataPackage) {
+            if (dataPackage instanceof ConnectEventDataPackage connect) {
+                return ConnectionEventProto.ConnectEventData.newBuilder()
+                        .setPlayerId(connect.playerId().toString())
+                        .setUsername(connect.username())
+                        .build()
+                        .toByteArray();
+            }
+            if (dataPackage instanceof DisconnectEventDataPackage disconnect) {
+                return ConnectionEventProto.DisconnectEventData.newBuilder()
+                        .setPlayerId(disconnect.playerId().toString())
+                        .build()
+                        .toByteArray();
+            }
+            throw new IllegalArgumentException("No protobuf schema for " + dataPackage.getClass().getSimpleName());
+        }
+    };
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionEventEncoding.class);
+    private static final Gson GSON = new Gson();
+
+    private final String contentType;
+
+    ConnectionEventEncoding(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public String getContentType() {
+        return this.contentType;
+    }
+
+    public abstract byte[] encode(Object dataPackage);
+
+    public static ConnectionEventEncoding fromEnvironment() {
+        return fromName(System.getenv().getOrDefault("RABBITMQ_CONNECTION_EVENT_ENCODING", "json"));
+    }
+
+    /**
+     * @return the encoding with the given name, ignoring case, or JSON if there isn't one
+     */
+    static ConnectionEventEncoding fromName(String name) {
+        try {
+            return ConnectionEventEncoding.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Unknown connection event encoding '{}', using JSON", name);
+            return JSON;
+        }
+    }
+}
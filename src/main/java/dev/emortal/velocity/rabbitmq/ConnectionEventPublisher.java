@@ -0,0 +1,391 @@
+package dev.emortal.velocity.rabbitmq;
+
+import dev.emortal.velocity.Environment;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Date;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Publishes connection events to RabbitMQ from a dedicated thread, so the event handlers that produce them never
+ * block on the broker.
+ * <p>
+ * Events are put in a bounded lock-free queue, which is drained in batches by the publisher thread. That thread is the
+ * only one to use the channel, which is in confirm mode. Confirms arrive asynchronously, and nacked events or events
+ * still unconfirmed when the channel fails are published again, so delivery is at least once. A failed channel is
+ * replaced once the connection, which recovers on its own, is open again.
+ * <p>
+ * Nothing new is published while retried events are unconfirmed, but events that were already published behind a
+ * nacked one can still arrive before its retry. Consumers that care about order, such as a player's connect and
+ * disconnect, should order by the millisecond {@code timestamp} header, as the AMQP timestamp is only to the second.
+ * <p>
+ * While there is no connection, events go to an {@link EventSpool} on disk instead of waiting in memory, including
+ * anything left when the proxy shuts down. Spooled events are published before new ones once the connection is back,
+ * so they are replayed in order and in the same batches. An event is removed from the spool when it is published, so
+ * one that is unconfirmed when the process dies is lost.
+ * <p>
+ * If the queue is full, new events are dropped and counted rather than blocking.
+ */
+public class ConnectionEventPublisher {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionEventPublisher.class);
+
+    private static final String CONNECTIONS_EXCHANGE = "mc:connections";
+
+    private static final ConnectionEventEncoding ENCODING = ConnectionEventEncoding.fromEnvironment();
+
+    private static final int QUEUE_CAPACITY = 16_384;
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final int MAX_UNCONFIRMED = 4_096;
+    // How long the thread sleeps when idle if nothing wakes it, so dropped events are still logged
+    private static final Duration IDLE_TIMEOUT = Duration.ofSeconds(1);
+    private static final Duration RECONNECT_DELAY = Duration.ofSeconds(1);
+    private static final Duration DROP_LOG_INTERVAL = Duration.ofSeconds(10);
+    private static final Duration SHUTDOWN_TIMEOUT = Duration.ofSeconds(5);
+
+    private final Supplier<Connection> connectionSupplier;
+    private final @Nullable EventSpool spool;
+
+    private final Queue<Event> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    // Serialised events to publish before anything new, from nacks and failed channels
+    private final Queue<Message> retries = new ConcurrentLinkedQueue<>();
+    // Published events by sequence number, until the broker confirms them
+    private final NavigableMap<Long, Message> unconfirmed = new ConcurrentSkipListMap<>();
+    private final LongAdder dropped = new LongAdder();
+
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile long shutdownDeadlineNanos;
+
+    // Only used by the publisher thread
+    private @Nullable Channel channel;
+    private long lastDropLogNanos = System.nanoTime();
+    private long spooled;
+    private long replayed;
+    // Sequence number of the last retried event published on the current channel, or 0 if there are none
+    private long lastRetrySequence;
+
+    /**
+     * @param connectionSupplier returns the connection, or null if there isn't one yet. It is only called from the
+     *                           publisher thread.
+     * @param spool              where events are kept while there is no connection, or null to keep them in memory
+     */
+    public ConnectionEventPublisher(Supplier<Connection> connectionSupplier, @Nullable EventSpool spool) {
+        this.connectionSupplier = connectionSupplier;
+        this.spool = spool;
+
+        this.thread = new Thread(this::run, "rabbitmq-connection-publisher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queues an event to be published. This never blocks, and the event is dropped if the queue is full.
+     */
+    public void publish(String type, Object dataPackage) {
+        if (this.queued.incrementAndGet() > QUEUE_CAPACITY) {
+            this.queued.decrementAndGet();
+            this.dropped.increment();
+            return;
+        }
+        this.queue.offer(new Event(type, dataPackage, System.currentTimeMillis()));
+        LockSupport.unpark(this.thread);
+    }
+
+    /**
+     * Stops the publisher thread, giving it a short time to publish and confirm what is left.
+     */
+    public void shutdown() {
+        this.shutdownDeadlineNanos = System.nanoTime() + SHUTDOWN_TIMEOUT.toNanos();
+        this.running = false;
+        LockSupport.unpark(this.thread);
+
+        try {
+            this.thread.join(SHUTDOWN_TIMEOUT.toMillis() + 1_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        int lost = this.queued.get() + this.retries.size() + this.unconfirmed.size();
+        if (lost > 0) LOGGER.warn("{} connection events were not confirmed or spooled before shutdown", lost);
+    }
+
+    private void run() {
+        while (this.running || (this.hasPending() && System.nanoTime() < this.shutdownDeadlineNanos)) {
+            this.logDrops();
+
+            Channel channel = this.openChannel();
+            if (channel == null) {
+                this.spoolPending();
+                if (!this.running) break;
+
+                this.awaitReconnect();
+                continue;
+            }
+
+            // Woken by new events, confirms and the channel closing
+            if (this.publishBatch(channel) == 0) LockSupport.parkNanos(this, IDLE_TIMEOUT.toNanos());
+        }
+
+        if (this.channel != null && this.channel.isOpen()) {
+            try {
+                this.channel.close();
+            } catch (IOException | TimeoutException | AlreadyClosedException e) {
+                LOGGER.debug("Failed to close connection event channel", e);
+            }
+        }
+
+        // Anything still unconfirmed may have been lost, so it is kept for the next run
+        this.requeueUnconfirmed();
+        this.spoolPending();
+        if (this.spool != null) this.spool.close();
+    }
+
+    /**
+     * Waits before the next connection attempt, spooling events as they arrive rather than letting them wake the
+     * thread into connecting again early.
+     */
+    private void awaitReconnect() {
+        long retryAtNanos = System.nanoTime() + RECONNECT_DELAY.toNanos();
+        long remainingNanos;
+        while (this.running && (remainingNanos = retryAtNanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, remainingNanos);
+            this.spoolPending();
+        }
+    }
+
+    private boolean hasPending() {
+        return this.queued.get() > 0 || !this.retries.isEmpty() || !this.unconfirmed.isEmpty();
+    }
+
+    /**
+     * @return an open channel in confirm mode, or null if one can't be opened right now
+     */
+    private @Nullable Channel openChannel() {
+        if (this.channel != null && this.channel.isOpen()) return this.channel;
+
+        if (this.channel != null) {
+            LOGGER.warn("Connection event channel closed with {} unconfirmed events, they will be published again",
+                    this.unconfirmed.size());
+            this.requeueUnconfirmed();
+            // Stops the connection from recovering the old channel, as its sequence numbers are no longer valid
+            try {
+                this.channel.abort();
+            } catch (IOException e) {
+                LOGGER.debug("Failed to abort connection event channel", e);
+            }
+            this.channel = null;
+            this.lastRetrySequence = 0;
+        }
+
+        // The connection recovers by itself, so wait for it rather than opening a new one
+        Connection connection = this.connectionSupplier.get();
+        if (connection == null || !connection.isOpen()) return null;
+
+        try {
+            Channel channel = connection.createChannel();
+            channel.confirmSelect();
+            channel.addConfirmListener((sequenceNumber, multiple) -> {
+                this.confirmed(sequenceNumber, multiple).clear();
+                LockSupport.unpark(this.thread);
+            }, (sequenceNumber, multiple) -> {
+                this.nacked(sequenceNumber, multiple);
+                LockSupport.unpark(this.thread);
+            });
+            channel.addShutdownListener(cause -> LockSupport.unpark(this.thread));
+            this.channel = channel;
+            return channel;
+        } catch (IOException | AlreadyClosedException e) {
+            LOGGER.warn("Failed to open connection event channel", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of events published
+     */
+    private int publishBatch(Channel channel) {
+        int published = 0;
+        while (published < MAX_BATCH_SIZE && this.hasConfirmCapacity(channel)) {
+            Message message = this.retries.poll();
+            boolean retry = message != null;
+            if (!retry) {
+                // Newer events wait for the retries to be confirmed, so they can't overtake them again
+                if (this.hasUnconfirmedRetries()) break;
+                message = this.nextMessage();
+            }
+            if (message == null) break;
+
+            long sequenceNumber = channel.getNextPublishSeqNo();
+            if (retry) this.lastRetrySequence = sequenceNumber;
+            this.unconfirmed.put(sequenceNumber, message);
+            try {
+                channel.basicPublish(CONNECTIONS_EXCHANGE, "", message.properties(), message.body());
+            } catch (IOException | AlreadyClosedException e) {
+                // The message is in the unconfirmed map, so it is requeued when the channel is replaced
+                LOGGER.warn("Failed to publish connection event", e);
+                break;
+            }
+            published++;
+        }
+        return published;
+    }
+
+    /**
+     * @return the oldest new or spooled message waiting to be published, or null if there are none
+     */
+    private @Nullable Message nextMessage() {
+        byte[] record = this.spool == null ? null : this.spool.poll();
+        if (record != null) {
+            this.replayed++;
+            if (this.spool.isEmpty()) {
+                LOGGER.info("Replayed {} spooled connection events", this.replayed);
+                this.replayed = 0;
+            }
+            return Message.fromBytes(record);
+        }
+
+        Event event = this.queue.poll();
+        if (event == null) return null;
+
+        this.queued.decrementAndGet();
+        return this.serialize(event);
+    }
+
+    /**
+     * Moves everything waiting to be published to the spool, oldest first.
+     */
+    private void spoolPending() {
+        if (this.spool == null) return;
+
+        Message message;
+        while ((message = this.retries.poll()) != null) {
+            this.spool(message);
+        }
+
+        Event event;
+        while ((event = this.queue.poll()) != null) {
+            this.queued.decrementAndGet();
+            this.spool(this.serialize(event));
+        }
+    }
+
+    private void spool(Message message) {
+        this.spooled++;
+        this.spool.append(message.toBytes());
+    }
+
+    private boolean hasUnconfirmedRetries() {
+        Map.Entry<Long, Message> oldest = this.unconfirmed.firstEntry();
+        return oldest != null && oldest.getKey() <= this.lastRetrySequence;
+    }
+
+    private boolean hasConfirmCapacity(Channel channel) {
+        Map.Entry<Long, Message> oldest = this.unconfirmed.firstEntry();
+        return oldest == null || channel.getNextPublishSeqNo() - oldest.getKey() < MAX_UNCONFIRMED;
+    }
+
+    private Message serialize(Event event) {
+        return new Message(event.type(), event.timestamp(), ENCODING.getContentType(), ENCODING.encode(event.dataPackage()));
+    }
+
+    private NavigableMap<Long, Message> confirmed(long sequenceNumber, boolean multiple) {
+        if (multiple) return this.unconfirmed.headMap(sequenceNumber, true);
+        return this.unconfirmed.subMap(sequenceNumber, true, sequenceNumber, true);
+    }
+
+    private void nacked(long sequenceNumber, boolean multiple) {
+        NavigableMap<Long, Message> nacked = this.confirmed(sequenceNumber, multiple);
+        LOGGER.warn("Broker nacked {} connection events, they will be published again", nacked.size());
+
+        Map.Entry<Long, Message> entry;
+        while ((entry = nacked.pollFirstEntry()) != null) {
+            this.retries.offer(entry.getValue());
+        }
+    }
+
+    private void requeueUnconfirmed() {
+        Map.Entry<Long, Message> entry;
+        while ((entry = this.unconfirmed.pollFirstEntry()) != null) {
+            this.retries.offer(entry.getValue());
+        }
+    }
+
+    private void logDrops() {
+        long now = System.nanoTime();
+        if (now - this.lastDropLogNanos < DROP_LOG_INTERVAL.toNanos()) return;
+        this.lastDropLogNanos = now;
+
+        long dropped = this.dropped.sumThenReset();
+        if (dropped > 0) LOGGER.warn("Dropped {} connection events in the last {}s as the queue was full", dropped, DROP_LOG_INTERVAL.toSeconds());
+
+        if (this.spool == null) return;
+        long spoolDropped = this.spool.takeDropped();
+        if (spoolDropped > 0) LOGGER.warn("Dropped the {} oldest spooled connection events as the spool was full", spoolDropped);
+        if (this.spooled > 0) {
+            LOGGER.warn("RabbitMQ is unavailable, spooled {} connection events in the last {}s", this.spooled, DROP_LOG_INTERVAL.toSeconds());
+            this.spooled = 0;
+        }
+    }
+
+    private record Event(String type, Object dataPackage, long timestamp) {
+    }
+
+    private record Message(String type, long timestamp, String contentType, byte[] body) {
+
+        AMQP.BasicProperties properties() {
+            return new AMQP.BasicProperties.Builder()
+                    .timestamp(new Date(this.timestamp))
+                    .headers(Map.<String, Object>of("timestamp", this.timestamp))
+                    .type(this.type)
+                    .contentType(this.contentType)
+                    .appId(Environment.getHostname())
+                    .build();
+        }
+
+        byte[] toBytes() {
+            byte[] type = this.type.getBytes(StandardCharsets.UTF_8);
+            byte[] contentType = this.contentType.getBytes(StandardCharsets.UTF_8);
+
+            return ByteBuffer.allocate(Long.BYTES + Short.BYTES + type.length + Short.BYTES + contentType.length + this.body.length)
+                    .putLong(this.timestamp)
+                    .putShort((short) type.length).put(type)
+                    .putShort((short) contentType.length).put(contentType)
+                    .put(this.body)
+                    .array();
+        }
+
+        static Message fromBytes(byte[] bytes) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long timestamp = buffer.getLong();
+
+            byte[] type = new byte[buffer.getShort()];
+            buffer.get(type);
+            byte[] contentType = new byte[buffer.getShort()];
+            buffer.get(contentType);
+            byte[] body = new byte[buffer.remaining()];
+            buffer.get(body);
+
+            return new Message(new String(type, StandardCharsets.UTF_8), timestamp, new String(contentType, StandardCharsets.UTF_8), body);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package dev.emortal.velocity.rabbitmq;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A fixed size ring of records in a memory-mapped file, for holding events while the broker can't be reached.
+ * <p>
+ * Records are read back in the order they were appended. When a new record doesn't fit, the oldest records are
+ * dropped to make room, so the file never grows past its configured size. The header holds the positions of the
+ * oldest record and the end of the newest one, and is only updated after a record is written, so the spool survives
+ * the process restarting. Writes go to the page cache and are only forced to disk on close.
+ * <p>
+ * This is not thread safe, and is only used by the publisher thread.
+ */
+public class EventSpool {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventSpool.class);
+
+    private static final int MAGIC = 0x53504f4c;
+    // Magic, padding, head position, tail position
+    private static final int HEADER_SIZE = 24;
+    private static final int HEAD_INDEX = 8;
+    private static final int TAIL_INDEX = 16;
+
+    private final FileChannel fileChannel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+
+    // Positions in bytes since the spool was last empty. The offset in the file is the position modulo the capacity.
+    private long head;
+    private long tail;
+    private long dropped;
+
+    private EventSpool(Path path, int capacity) throws IOException {
+        this.capacity = capacity;
+        this.fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        // A spool written with a different size can't be read, so it is discarded
+        boolean resized = this.fileChannel.size() != HEADER_SIZE + capacity;
+        if (resized) this.fileChannel.truncate(0);
+        this.buffer = this.fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+
+        if (!resized && this.buffer.getInt(0) == MAGIC) {
+            this.head = this.buffer.getLong(HEAD_INDEX);
+            this.tail = this.buffer.getLong(TAIL_INDEX);
+        }
+        if (this.head < 0 || this.tail < this.head || this.tail - this.head > capacity) {
+            LOGGER.warn("Spool {} is corrupt, discarding it", path);
+            this.head = 0;
+            this.tail = 0;
+        }
+
+        this.buffer.putInt(0, MAGIC);
+        this.writePositions();
+        if (!this.isEmpty()) LOGGER.info("Spool {} has {} bytes of events from a previous run", path, this.tail - this.head);
+    }
+
+    /**
+     * @return the spool, or null if the file couldn't be opened
+     */
+    public static @Nullable EventSpool open(Path path, int capacity) {
+        try {
+            return new EventSpool(path, capacity);
+        } catch (IOException e) {
+            LOGGER.error("Failed to open spool {}, events will not be spooled", path, e);
+            return null;
+        }
+    }
+
+    public boolean isEmpty() {
+        return this.head == this.tail;
+    }
+
+    /**
+     * Appends a record, dropping the oldest records if there isn't room for it.
+     */
+    public void append(byte[] record) {
+        int size = Integer.BYTES + record.length;
+        if (size > this.capacity) {
+            this.dropped++;
+            return;
+        }
+
+        while (this.tail - this.head + size > this.capacity) {
+            this.head += Integer.BYTES + this.readInt(this.head);
+            this.dropped++;
+        }
+
+        this.write(this.tail, ByteBuffer.allocate(Integer.BYTES).putInt(record.length).array());
+        this.write(this.tail + Integer.BYTES, record);
+        this.tail += size;
+        this.writePositions();
+    }
+
+    /**
+     * Removes the oldest record.
+     *
+     * @return the record, or null if the spool is empty
+     */
+    public @Nullable byte[] poll() {
+        if (this.isEmpty()) return null;
+
+        byte[] record = new byte[this.readInt(this.head)];
+        this.read(this.head + Integer.BYTES, record);
+        this.head += Integer.BYTES + record.length;
+
+        // Start from the beginning again when empty, so positions stay small
+        if (this.isEmpty()) {
+            this.head = 0;
+            this.tail = 0;
+        }
+        this.writePositions();
+        return record;
+    }
+
+    /**
+     * @return the number of records dropped since this was last called
+     */
+    public long takeDropped() {
+        long dropped = this.dropped;
+        this.dropped = 0;
+        return dropped;
+    }
+
+    public void close() {
+        this.buffer.force();
+        try {
+            this.fileChannel.close();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to close spool", e);
+        }
+    }
+
+    private void writePositions() {
+        this.buffer.putLong(HEAD_INDEX, this.head);
+        this.buffer.putLong(TAIL_INDEX, this.tail);
+    }
+
+    private int readInt(long position) {
+        byte[] bytes = new byte[Integer.BYTES];
+        this.read(position, bytes);
+        return ByteBuffer.wrap(bytes).getInt();
+    }
+
+    private void write(long position, byte[] bytes) {
+        int offset = (int) (position % this.capacity);
+        int first = Math.min(bytes.length, this.capacity - offset);
+
+        this.buffer.put(HEADER_SIZE + offset, bytes, 0, first);
+        if (first < bytes.length) this.buffer.put(HEADER_SIZE, bytes, first, bytes.length - first);
+    }
+
+    private void read(long position, byte[] bytes) {
+        int offset = (int) (position % this.capacity);
+        int first = Math.min(bytes.length, this.capacity - offset);
+
+        this.buffer.get(HEADER_SIZE + offset, bytes, 0, first);
+        if (first < bytes.length) this.buffer.get(HEADER_SIZE, bytes, first, bytes.length - first);
+    }
+}
@@ -1,83 +1,97 @@
 package dev.emortal.velocity.rabbitmq;
 
-import dev.emortal.velocity.Environment;
 import dev.emortal.velocity.rabbitmq.types.DisconnectEventDataPackage;
 import dev.emortal.velocity.rabbitmq.types.ConnectEventDataPackage;
-import com.google.gson.Gson;
-import com.rabbitmq.client.AMQP;
-import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
 import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.event.connection.DisconnectEvent;
 import com.velocitypowered.api.event.connection.PostLoginEvent;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.util.Date;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
 
 public class RabbitMqEventListener {
-    private static final String CONNECTIONS_EXCHANGE = "mc:connections";
+    private static final Logger LOGGER = LoggerFactory.getLogger(RabbitMqEventListener.class);
 
     private static final String HOST = System.getenv("RABBITMQ_HOST");
     private static final String USERNAME = System.getenv("RABBITMQ_USERNAME");
     private static final String PASSWORD = System.getenv("RABBITMQ_PASSWORD");
 
-    private static final Gson GSON = new Gson();
+    private static final Path SPOOL_PATH = Path.of(System.getenv().getOrDefault("RABBITMQ_SPOOL_PATH", "rabbitmq-spool.dat"));
+    private static final int SPOOL_SIZE = Integer.parseInt(System.getenv().getOrDefault("RABBITMQ_SPOOL_SIZE_MB", "64")) * 1024 * 1024;
+    // Connection attempts run on the publisher thread, which can't spool events while one is in progress
+    private static final Duration CONNECTION_TIMEOUT = Duration.ofSeconds(2);
 
-    private final Connection connection;
-    private final Channel channel;
+    private final ConnectionFactory connectionFactory = new ConnectionFactory();
+    private final CompletableFuture<Connection> connection = new CompletableFuture<>();
+    private boolean connectFailed;
+
+    private final ConnectionEventPublisher publisher;
 
     public RabbitMqEventListener() {
-        ConnectionFactory connectionFactory = new ConnectionFactory();
-        connectionFactory.setHost(HOST);
-        connectionFactory.setUsername(USERNAME);
-        connectionFactory.setPassword(PASSWORD);
+        this.connectionFactory.setHost(HOST);
+        this.connectionFactory.setUsername(USERNAME);
+        this.connectionFactory.setPassword(PASSWORD);
+        this.connectionFactory.setAutomaticRecoveryEnabled(true);
+        this.connectionFactory.setConnectionTimeout((int) CONNECTION_TIMEOUT.toMillis());
 
-        try {
-            this.connection = connectionFactory.newConnection();
-            this.channel = this.connection.createChannel();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        // The publisher makes the first connection, so startup doesn't wait for or depend on the broker
+        this.publisher = new ConnectionEventPublisher(this::connect, EventSpool.open(SPOOL_PATH, SPOOL_SIZE));
     }
 
     @Subscribe
     public void onPlayerLogin(PostLoginEvent event) {
-        ConnectEventDataPackage dataPackage = new ConnectEventDataPackage(event.getPlayer().getUniqueId(), event.getPlayer().getUsername());
-        AMQP.BasicProperties basicProperties = new AMQP.BasicProperties.Builder()
-                .timestamp(new Date())
-                .type("connect")
-                .appId(Environment.getHostname())
-                .build();
-
-        try {
-            this.channel.basicPublish(CONNECTIONS_EXCHANGE, "", basicProperties, GSON.toJson(dataPackage).getBytes(StandardCharsets.UTF_8));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        this.publisher.publish("connect", new ConnectEventDataPackage(event.getPlayer().getUniqueId(), event.getPlayer().getUsername()));
     }
 
     @Subscribe
     public void onPlayerDisconnect(DisconnectEvent event) {
-        DisconnectEventDataPackage dataPackage = new DisconnectEventDataPackage(event.getPlayer().getUniqueId());
-        AMQP.BasicProperties basicProperties = new AMQP.BasicProperties.Builder()
-                .timestamp(new Date())
-                .type("disconnect")
-                .appId(Environment.getHostname())
-                .build();
+        this.publisher.publish("disconnect", new DisconnectEventDataPackage(event.getPlayer().getUniqueId()));
+    }
+
+    /**
+     * Once connected, the connection recovers by itself, so this only needs to succeed once.
+     *
+     * @return the connection, or null if the broker couldn't be reached
+     */
+    private @Nullable Connection connect() {
+        Connection connection = this.connection.getNow(null);
+        if (connection != null) return connection;
 
         try {
-            this.channel.basicPublish(CONNECTIONS_EXCHANGE, "", basicProperties, GSON.toJson(dataPackage).getBytes(StandardCharsets.UTF_8));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            connection = this.connectionFactory.newConnection();
+        } catch (IOException | TimeoutException e) {
+            if (!this.connectFailed) LOGGER.warn("Failed to connect to RabbitMQ, retrying in the background: {}", e.getMessage());
+            this.connectFailed = true;
+            return null;
         }
+
+        if (this.connectFailed) LOGGER.info("Connected to RabbitMQ");
+        this.connection.complete(connection);
+        return connection;
+    }
+
+    /**
+     * @return a future completed when the first connection to the broker is made
+     */
+    public CompletableFuture<Connection> getConnection() {
+        return this.connection;
     }
 
     public void shutdown() {
+        this.publisher.shutdown();
+
+        Connection connection = this.connection.getNow(null);
+        if (connection == null) return;
         try {
-            this.channel.close();
-            this.connection.close();
+            connection.close();
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
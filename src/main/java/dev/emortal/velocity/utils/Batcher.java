@@ -0,0 +1,77 @@
+package dev.emortal.velocity.utils;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Collects items into batches, flushing a batch once it reaches its maximum size or once the window has passed since
+ * its first item was added, whichever comes first.
+ * <p>
+ * The flush handler is called on either the thread that filled the batch or a shared scheduler thread, so it must
+ * not block.
+ */
+public final class Batcher<T> {
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long windowNanos;
+    private final int maxSize;
+    private final Consumer<List<T>> flushHandler;
+
+    private List<T> pending = new ArrayList<>();
+    private @Nullable ScheduledFuture<?> scheduledFlush;
+
+    public Batcher(Duration window, int maxSize, Consumer<List<T>> flushHandler) {
+        this.windowNanos = window.toNanos();
+        this.maxSize = maxSize;
+        this.flushHandler = flushHandler;
+    }
+
+    public void add(T item) {
+        List<T> batch = null;
+        synchronized (this) {
+            this.pending.add(item);
+
+            if (this.pending.size() >= this.maxSize) {
+                batch = this.takePending();
+            } else if (this.scheduledFlush == null) {
+                this.scheduledFlush = SCHEDULER.schedule(this::flush, this.windowNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        if (batch != null) this.flushHandler.accept(batch);
+    }
+
+    public void flush() {
+        List<T> batch;
+        synchronized (this) {
+            if (this.pending.isEmpty()) return;
+            batch = this.takePending();
+        }
+
+        this.flushHandler.accept(batch);
+    }
+
+    // Must be called while synchronized on this
+    private List<T> takePending() {
+        if (this.scheduledFlush != null) {
+            this.scheduledFlush.cancel(false);
+            this.scheduledFlush = null;
+        }
+
+        List<T> batch = this.pending;
+        this.pending = new ArrayList<>();
+        return batch;
+    }
+}
@@ -0,0 +1,94 @@
+package dev.emortal.velocity.utils;
+
+import com.velocitypowered.api.event.Continuation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Enforces a latency budget on a Velocity {@link Continuation}, so that a stalled dependency caps login latency
+ * instead of holding the login open forever.
+ * <p>
+ * If the budget runs out before the continuation is resumed, the stage is recorded, the fallback is run and the
+ * continuation is resumed. Any later resume from the original callback is ignored.
+ */
+public final class ContinuationWatchdog implements Continuation {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContinuationWatchdog.class);
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "continuation-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final Map<String, LongAdder> EXCEEDED_BUDGETS = new ConcurrentHashMap<>();
+
+    private final String stage;
+    private final Duration budget;
+    private final Continuation delegate;
+    private final Runnable fallback;
+
+    private final AtomicBoolean resumed = new AtomicBoolean();
+    private final ScheduledFuture<?> timeout;
+
+    private ContinuationWatchdog(String stage, Duration budget, Continuation delegate, Runnable fallback) {
+        this.stage = stage;
+        this.budget = budget;
+        this.delegate = delegate;
+        this.fallback = fallback;
+
+        this.timeout = SCHEDULER.schedule(this::onBudgetExceeded, budget.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public static Continuation watch(String stage, Duration budget, Continuation continuation, Runnable fallback) {
+        return new ContinuationWatchdog(stage, budget, continuation, fallback);
+    }
+
+    /**
+     * @return how many times each stage has run out of budget since startup
+     */
+    public static Map<String, Long> getExceededBudgets() {
+        return EXCEEDED_BUDGETS.entrySet().stream()
+                .collect(Collectors.toUnmodifiableMap(Map.Entry::getKey, entry -> entry.getValue().sum()));
+    }
+
+    private void onBudgetExceeded() {
+        if (!this.resumed.compareAndSet(false, true)) return;
+
+        EXCEEDED_BUDGETS.computeIfAbsent(this.stage, key -> new LongAdder()).increment();
+        LOGGER.warn("Login stage '{}' exceeded its {}ms budget, resuming with a fallback", this.stage, this.budget.toMillis());
+
+        try {
+            this.fallback.run();
+        } catch (RuntimeException exception) {
+            LOGGER.error("Fallback for login stage '{}' failed", this.stage, exception);
+        }
+        this.delegate.resume();
+    }
+
+    @Override
+    public void resume() {
+        if (!this.resumed.compareAndSet(false, true)) return;
+
+        this.timeout.cancel(false);
+        this.delegate.resume();
+    }
+
+    @Override
+    public void resumeWithException(Throwable exception) {
+        if (!this.resumed.compareAndSet(false, true)) return;
+
+        this.timeout.cancel(false);
+        this.delegate.resumeWithException(exception);
+    }
+}
@@ -0,0 +1,33 @@
+package dev.emortal.velocity.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Count, average and maximum of a timing, over the interval since it was last drained.
+ */
+public final class TimingStats {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMillis = new LongAdder();
+    private final AtomicLong maxMillis = new AtomicLong();
+
+    public void record(long millis) {
+        this.count.increment();
+        this.totalMillis.add(millis);
+        this.maxMillis.accumulateAndGet(millis, Math::max);
+    }
+
+    public void recordSince(long startNanos) {
+        this.record((System.nanoTime() - startNanos) / 1_000_000);
+    }
+
+    /**
+     * @return a summary of the timings recorded since the last drain, which are then reset
+     */
+    public String drain() {
+        long count = this.count.sumThenReset();
+        long totalMillis = this.totalMillis.sumThenReset();
+        long maxMillis = this.maxMillis.getAndSet(0);
+        return "count=%s, avg=%sms, max=%sms".formatted(count, count == 0 ? 0 : totalMillis / count, maxMillis);
+    }
+}
@@ -0,0 +1,98 @@
+package dev.emortal.velocity.permissions;
+
+import com.velocitypowered.api.permission.Tristate;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PermissionTrieTest {
+
+    @Test
+    void exactMatch() {
+        PermissionTrie trie = new PermissionTrie();
+        trie.put("command.friend", Tristate.TRUE, 0);
+
+        assertEquals(Tristate.TRUE, trie.get("command.friend"));
+        assertEquals(Tristate.UNDEFINED, trie.get("command"));
+        assertEquals(Tristate.UNDEFINED, trie.get("command.friend.add"));
+        assertEquals(Tristate.UNDEFINED, trie.get("command.perm"));
+    }
+
+    @Test
+    void wildcardGrantsEveryNodeBelowItsParent() {
+        PermissionTrie trie = new PermissionTrie();
+        trie.put("command.*", Tristate.TRUE, 0);
+
+        assertEquals(Tristate.TRUE, trie.get("command.friend"));
+        assertEquals(Tristate.TRUE, trie.get("command.friend.add"));
+        // The wildcard is below its parent, not the parent itself
+        assertEquals(Tristate.UNDEFINED, trie.get("command"));
+        assertEquals(Tristate.UNDEFINED, trie.get("other.friend"));
+    }
+
+    @Test
+    void rootWildcardGrantsEverything() {
+        PermissionTrie trie = new PermissionTrie();
+        trie.put("*", Tristate.TRUE, 0);
+
+        assertEquals(Tristate.TRUE, trie.get("command"));
+        assertEquals(Tristate.TRUE, trie.get("command.friend.add"));
+    }
+
+    @Test
+    void higherPriorityWins() {
+        PermissionTrie trie = new PermissionTrie();
+        trie.put("command.friend", Tristate.FALSE, 5);
+        trie.put("command.*", Tristate.TRUE, 10);
+
+        assertEquals(Tristate.TRUE, trie.get("command.friend"));
+
+        PermissionTrie reversed = new PermissionTrie();
+        reversed.put("command.*", Tristate.TRUE, 5);
+        reversed.put("command.friend", Tristate.FALSE, 10);
+
+        assertEquals(Tristate.FALSE, reversed.get("command.friend"));
+        assertEquals(Tristate.TRUE, reversed.get("command.perm"));
+    }
+
+    @Test
+    void deeperMatchWinsOnEqualPriority() {
+        PermissionTrie trie = new PermissionTrie();
+        trie.put("*", Tristate.TRUE, 0);
+        trie.put("command.*", Tristate.FALSE, 0);
+        trie.put("command.friend.*", Tristate.TRUE, 0);
+        trie.put("command.friend.add", Tristate.FALSE, 0);
+
+        assertEquals(Tristate.TRUE, trie.get("other"));
+        assertEquals(Tristate.FALSE, trie.get("command.perm"));
+        assertEquals(Tristate.TRUE, trie.get("command.friend.remove"));
+        assertEquals(Tristate.FALSE, trie.get("command.friend.add"));
+    }
+
+    @Test
+    void laterEntryWinsForTheSameNodeAndPriority() {
+        PermissionTrie trie = new PermissionTrie();
+        trie.put("command.friend", Tristate.TRUE, 0);
+        trie.put("command.friend", Tristate.FALSE, 0);
+
+        assertEquals(Tristate.FALSE, trie.get("command.friend"));
+    }
+
+    @Test
+    void lowerPriorityDoesNotReplaceHigher() {
+        PermissionTrie trie = new PermissionTrie();
+        trie.put("command.friend", Tristate.TRUE, 10);
+        trie.put("command.friend", Tristate.FALSE, 0);
+
+        assertEquals(Tristate.TRUE, trie.get("command.friend"));
+    }
+
+    @Test
+    void wildcardMidPermissionIsALiteralSegment() {
+        PermissionTrie trie = new PermissionTrie();
+        trie.put("command.*.add", Tristate.TRUE, 0);
+
+        assertEquals(Tristate.UNDEFINED, trie.get("command.friend.add"));
+        assertEquals(Tristate.TRUE, trie.get("command.*.add"));
+    }
+}
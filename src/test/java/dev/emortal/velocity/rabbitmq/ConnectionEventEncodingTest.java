@@ -0,0 +1,55 @@
+package dev.emortal.velocity.rabbitmq;
+
+import dev.emortal.velocity.rabbitmq.types.ConnectEventDataPackage;
+import dev.emortal.velocity.rabbitmq.types.ConnectionEventProto;
+import dev.emortal.velocity.rabbitmq.types.DisconnectEventDataPackage;
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConnectionEventEncodingTest {
+    private static final UUID PLAYER_ID = UUID.fromString("8d36737e-1c0a-4a71-87de-9906f577845e");
+
+    @Test
+    void connectParsesWithSchema() throws Exception {
+        byte[] encoded = ConnectionEventEncoding.PROTOBUF.encode(new ConnectEventDataPackage(PLAYER_ID, "Notch"));
+
+        ConnectionEventProto.ConnectEventData message = ConnectionEventProto.ConnectEventData.parseFrom(encoded);
+        assertEquals(PLAYER_ID.toString(), message.getPlayerId());
+        assertEquals("Notch", message.getUsername());
+        assertTrue(message.getUnknownFields().asMap().isEmpty());
+    }
+
+    @Test
+    void disconnectParsesWithSchema() throws Exception {
+        byte[] encoded = ConnectionEventEncoding.PROTOBUF.encode(new DisconnectEventDataPackage(PLAYER_ID));
+
+        ConnectionEventProto.DisconnectEventData message = ConnectionEventProto.DisconnectEventData.parseFrom(encoded);
+        assertEquals(PLAYER_ID.toString(), message.getPlayerId());
+        assertTrue(message.getUnknownFields().asMap().isEmpty());
+    }
+
+    @Test
+    void nonAsciiUsernameParsesWithSchema() throws Exception {
+        byte[] encoded = ConnectionEventEncoding.PROTOBUF.encode(new ConnectEventDataPackage(PLAYER_ID, "Ünïcödé_名前"));
+
+        ConnectionEventProto.ConnectEventData message = ConnectionEventProto.ConnectEventData.parseFrom(encoded);
+        assertEquals("Ünïcödé_名前", message.getUsername());
+    }
+
+    @Test
+    void encodingNamesIgnoreCase() {
+        assertEquals(ConnectionEventEncoding.PROTOBUF, ConnectionEventEncoding.fromName("protobuf"));
+        assertEquals(ConnectionEventEncoding.PROTOBUF, ConnectionEventEncoding.fromName(" Protobuf "));
+        assertEquals(ConnectionEventEncoding.JSON, ConnectionEventEncoding.fromName("JSON"));
+    }
+
+    @Test
+    void unknownEncodingFallsBackToJson() {
+        assertEquals(ConnectionEventEncoding.JSON, ConnectionEventEncoding.fromName("protobuff"));
+        assertEquals(ConnectionEventEncoding.JSON, ConnectionEventEncoding.fromName(""));
+    }
+}
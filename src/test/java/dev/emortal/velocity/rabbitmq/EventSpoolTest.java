@@ -0,0 +1,145 @@
+package dev.emortal.velocity.rabbitmq;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EventSpoolTest {
+    // Each record takes its length plus a 4 byte size prefix, so two 10 byte records fit in 32 bytes but three don't
+    private static final int CAPACITY = 32;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void pollsInAppendOrder() {
+        EventSpool spool = this.open(CAPACITY);
+        spool.append(record(1, 10));
+        spool.append(record(2, 5));
+
+        assertArrayEquals(record(1, 10), spool.poll());
+        assertArrayEquals(record(2, 5), spool.poll());
+        assertNull(spool.poll());
+        assertTrue(spool.isEmpty());
+    }
+
+    @Test
+    void recordWrapsAroundTheEndOfTheFile() {
+        EventSpool spool = this.open(CAPACITY);
+        spool.append(record(1, 10));
+        spool.append(record(2, 10));
+        spool.poll();
+
+        // Starts 28 bytes in, so its size prefix fits before the end and its body continues from the start
+        spool.append(record(3, 10));
+
+        assertArrayEquals(record(2, 10), spool.poll());
+        assertArrayEquals(record(3, 10), spool.poll());
+        assertTrue(spool.isEmpty());
+        assertEquals(0, spool.takeDropped());
+    }
+
+    @Test
+    void sizePrefixWrapsAroundTheEndOfTheFile() {
+        EventSpool spool = this.open(CAPACITY);
+        spool.append(record(1, 12));
+        spool.append(record(2, 2));
+        spool.poll();
+
+        // Starts 22 bytes in, then a second record starts 30 bytes in, splitting its size prefix
+        spool.append(record(3, 4));
+        spool.poll();
+        spool.append(record(4, 10));
+
+        assertArrayEquals(record(3, 4), spool.poll());
+        assertArrayEquals(record(4, 10), spool.poll());
+        assertTrue(spool.isEmpty());
+    }
+
+    @Test
+    void dropsOldestRecordsWhenFull() {
+        EventSpool spool = this.open(CAPACITY);
+        spool.append(record(1, 10));
+        spool.append(record(2, 10));
+        spool.append(record(3, 10));
+
+        assertEquals(1, spool.takeDropped());
+        assertEquals(0, spool.takeDropped());
+        assertArrayEquals(record(2, 10), spool.poll());
+        assertArrayEquals(record(3, 10), spool.poll());
+        assertNull(spool.poll());
+    }
+
+    @Test
+    void dropsAsManyOldRecordsAsNeeded() {
+        EventSpool spool = this.open(CAPACITY);
+        spool.append(record(1, 4));
+        spool.append(record(2, 4));
+        spool.append(record(3, 4));
+        spool.append(record(4, 20));
+
+        assertEquals(2, spool.takeDropped());
+        assertArrayEquals(record(3, 4), spool.poll());
+        assertArrayEquals(record(4, 20), spool.poll());
+        assertNull(spool.poll());
+    }
+
+    @Test
+    void dropsRecordLargerThanTheSpool() {
+        EventSpool spool = this.open(CAPACITY);
+        spool.append(record(1, 10));
+        spool.append(record(2, CAPACITY));
+
+        assertEquals(1, spool.takeDropped());
+        // The records already spooled are kept
+        assertArrayEquals(record(1, 10), spool.poll());
+        assertTrue(spool.isEmpty());
+    }
+
+    @Test
+    void keepsRecordsAcrossReopening() {
+        EventSpool spool = this.open(CAPACITY);
+        spool.append(record(1, 10));
+        spool.append(record(2, 10));
+        spool.poll();
+        spool.append(record(3, 10));
+        spool.close();
+
+        EventSpool reopened = this.open(CAPACITY);
+        assertArrayEquals(record(2, 10), reopened.poll());
+        assertArrayEquals(record(3, 10), reopened.poll());
+        assertNull(reopened.poll());
+    }
+
+    @Test
+    void discardsSpoolWrittenWithDifferentSize() {
+        EventSpool spool = this.open(CAPACITY);
+        spool.append(record(1, 10));
+        spool.close();
+
+        EventSpool resized = this.open(CAPACITY * 2);
+        assertTrue(resized.isEmpty());
+        assertNull(resized.poll());
+    }
+
+    private EventSpool open(int capacity) {
+        EventSpool spool = EventSpool.open(this.directory.resolve("spool.dat"), capacity);
+        assertNotNull(spool);
+        return spool;
+    }
+
+    private static byte[] record(int seed, int length) {
+        byte[] record = new byte[length];
+        for (int i = 0; i < length; i++) {
+            record[i] = (byte) (seed * 31 + i);
+        }
+        return record;
+    }
+}